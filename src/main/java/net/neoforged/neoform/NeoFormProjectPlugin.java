@@ -2,22 +2,33 @@ package net.neoforged.neoform;
 
 import net.neoforged.neoform.dsl.NeoFormExtension;
 import net.neoforged.neoform.tasks.CreateConfig;
+import net.neoforged.neoform.tasks.CreateLibrariesAbiJar;
 import net.neoforged.neoform.tasks.CreatePatchWorkspace;
 import net.neoforged.neoform.tasks.CreatePatches;
 import net.neoforged.neoform.tasks.Decompile;
 import net.neoforged.neoform.tasks.DownloadVersionArtifact;
 import net.neoforged.neoform.tasks.DownloadVersionManifest;
 import net.neoforged.neoform.tasks.PrepareJarForDecompiler;
+import net.neoforged.neoform.tasks.PublishDecompiledOutput;
+import net.neoforged.neoform.tasks.RestoreDecompiledOutput;
+import net.neoforged.neoform.tasks.SplitJoinedJar;
 import net.neoforged.neoform.tasks.TestNeoFormData;
 import net.neoforged.neoform.tasks.ToolAction;
+import org.gradle.api.GradleException;
 import org.gradle.api.InvalidUserCodeException;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.file.Directory;
 import org.gradle.api.file.RegularFile;
 import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.TaskProvider;
 import org.gradle.api.tasks.bundling.Zip;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
 public class NeoFormProjectPlugin implements Plugin<Project> {
     public void apply(Project project) {
         if (project.getRootProject() != project) {
@@ -29,6 +40,9 @@ public class NeoFormProjectPlugin implements Plugin<Project> {
         var buildDir = project.getLayout().getBuildDirectory();
         var inputsDir = buildDir.dir("neoform/inputs");
         var minecraftVersion = neoForm.getMinecraftVersion();
+        var patchesDir = project.getLayout().getProjectDirectory().dir("src/patches");
+
+        neoForm.getFocus().convention(project.provider(() -> getPatchedClasses(patchesDir.getAsFile())));
 
         project.setVersion(minecraftVersion.get());
 
@@ -71,14 +85,96 @@ public class NeoFormProjectPlugin implements Plugin<Project> {
         // Decompile
         //////////////////////////////////////////////////////////////////////////////////////////////////////////////
         var minecraftLibrariesClasspath = MinecraftLibraries.createConfiguration(project);
+        var decompilerLibraries = project.files();
+        if (neoForm.getUseLibrariesAbiJar().get()) {
+            var createLibrariesAbiJar = tasks.register("createLibrariesAbiJar", CreateLibrariesAbiJar.class, task -> {
+                task.setGroup("neoform/internal");
+                task.getLibraries().from(minecraftLibrariesClasspath);
+                task.getCacheDirectory().set(new File(project.getGradle().getGradleUserHomeDir(), "caches/neoform/libraries-abi"));
+                task.getOutput().set(buildDir.map(dir -> dir.file("neoform/libraries-abi.jar")));
+            });
+            decompilerLibraries.from(createLibrariesAbiJar.flatMap(CreateLibrariesAbiJar::getOutput));
+        } else {
+            decompilerLibraries.from(minecraftLibrariesClasspath);
+        }
+        // Keep the resources out of the decompiler, they go straight into the workspace instead
+        Provider<RegularFile> decompilerInput;
+        TaskProvider<SplitJoinedJar> splitJoinedJar;
+        if (neoForm.getSplitResources().get()) {
+            splitJoinedJar = tasks.register("splitJoinedJar", SplitJoinedJar.class, task -> {
+                task.setGroup("neoform/internal");
+                task.getInput().set(prepareJarForDecompiler.flatMap(PrepareJarForDecompiler::getOutput));
+                task.getClassesJar().set(prefixFilenameWithVersion(neoForm, inputsDir, "classes.jar"));
+                task.getResourcesZip().set(prefixFilenameWithVersion(neoForm, inputsDir, "resources.zip"));
+                task.getIntermediateFormat().set(neoForm.getIntermediateFormat());
+            });
+            decompilerInput = splitJoinedJar.flatMap(SplitJoinedJar::getClassesJar);
+        } else {
+            splitJoinedJar = null;
+            decompilerInput = prepareJarForDecompiler.flatMap(PrepareJarForDecompiler::getOutput);
+        }
         var decompile = tasks.register("decompile", Decompile.class, task -> {
             task.setGroup("neoform/internal");
-            task.getInput().set(prepareJarForDecompiler.flatMap(PrepareJarForDecompiler::getOutput));
-            task.getInputClasspath().from(minecraftLibrariesClasspath);
+            task.getInput().set(decompilerInput);
+            task.getInputClasspath().from(decompilerLibraries);
             task.getOutput().set(prefixFilenameWithVersion(neoForm, inputsDir, "sources.zip"));
+            task.getShards().set(neoForm.getDecompilerShards());
+            task.getIntermediateFormat().set(neoForm.getIntermediateFormat());
+            task.getRememberedMaxHeapSize().set(buildDir.map(dir -> dir.file("neoform/decompiler-max-heap-size.txt")));
+            if (neoForm.getIncrementalDecompile().get()) {
+                task.getIncrementalBaseline().set(buildDir.map(dir -> dir.dir("neoform/decompile-baseline")));
+            }
+            if (neoForm.getFocusMode().get()) {
+                task.getFocus().set(neoForm.getFocus());
+            }
         });
         ToolAction.configure(project, decompile, neoForm.getDecompiler());
 
+        // Start the tool JVMs with class data sharing archives recorded by their previous runs
+        if (neoForm.getUseClassDataSharing().get()) {
+            var classDataSharingCache = new File(project.getGradle().getGradleUserHomeDir(), "caches/neoform/cds");
+            tasks.withType(ToolAction.class).configureEach(task -> task.getClassDataSharingCache().set(classDataSharingCache));
+        }
+
+        //////////////////////////////////////////////////////////////////////////////////////////////////////////////
+        // Reuse the decompiled output of other builds of the same Minecraft version and tool settings
+        //////////////////////////////////////////////////////////////////////////////////////////////////////////////
+        // The partial output of focus mode must neither replace the full output, nor be shared with other builds
+        if (neoForm.getUseDecompiledOutputStore().get() && !neoForm.getFocusMode().get()) {
+            var storeDir = new File(project.getGradle().getGradleUserHomeDir(), "caches/neoform/decompiled-outputs");
+            var storeState = prefixFilenameWithVersion(neoForm, inputsDir, "decompiled_output_store.properties");
+            var restoreDecompiledOutput = tasks.register("restoreDecompiledOutput", RestoreDecompiledOutput.class, task -> {
+                task.setGroup("neoform/internal");
+                task.getVersionManifest().set(versionManifest);
+                task.getPreProcessJar().set(neoForm.getPreProcessJar());
+                task.getDecompiler().set(neoForm.getDecompiler());
+                task.getDecompileOptions().add(neoForm.getDecompilerShards().map(shards -> "shards=" + shards));
+                task.getDecompileOptions().add(neoForm.getUseLibrariesAbiJar().map(abiJar -> "librariesAbiJar=" + abiJar));
+                task.getDecompileOptions().add(neoForm.getSplitResources().map(splitResources -> "splitResources=" + splitResources));
+                task.getLibraries().from(minecraftLibrariesClasspath);
+                task.getStoreDirectory().set(storeDir);
+                task.getJoinedJar().set(prepareJarForDecompiler.flatMap(PrepareJarForDecompiler::getOutput));
+                task.getSourcesZip().set(decompile.flatMap(Decompile::getOutput));
+                task.getStateFile().set(storeState);
+            });
+            for (var taskProvider : List.of(downloadClient, downloadServer, prepareJarForDecompiler, decompile)) {
+                taskProvider.configure(task -> {
+                    task.dependsOn(restoreDecompiledOutput);
+                    task.onlyIf("Decompiled output was not restored from the store", ignored -> {
+                        return !RestoreDecompiledOutput.wasRestored(storeState.get().getAsFile());
+                    });
+                });
+            }
+            var publishDecompiledOutput = tasks.register("publishDecompiledOutput", PublishDecompiledOutput.class, task -> {
+                task.setGroup("neoform/internal");
+                task.getJoinedJar().set(prepareJarForDecompiler.flatMap(PrepareJarForDecompiler::getOutput));
+                task.getSourcesZip().set(decompile.flatMap(Decompile::getOutput));
+                task.getStateFile().set(restoreDecompiledOutput.flatMap(RestoreDecompiledOutput::getStateFile));
+                task.getStoreDirectory().set(storeDir);
+            });
+            decompile.configure(task -> task.finalizedBy(publishDecompiledOutput));
+        }
+
         //////////////////////////////////////////////////////////////////////////////////////////////////////////////
         // Workflow Tasks
         //////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -87,19 +183,49 @@ public class NeoFormProjectPlugin implements Plugin<Project> {
             task.getPatchesDir().set(project.getLayout().getProjectDirectory().dir("src/patches"));
             task.getSourcesZip().set(decompile.flatMap(Decompile::getOutput));
             task.getWorkspace().set(project.getLayout().getProjectDirectory().dir("workspace"));
+            task.getParallelism().set(neoForm.getParallelism());
+            task.getDecompiledFilesCache().set(buildDir.map(dir -> dir.dir("neoform/decompiled-files")));
+            if (splitJoinedJar != null) {
+                task.getResourcesZip().set(splitJoinedJar.flatMap(SplitJoinedJar::getResourcesZip));
+            }
         });
         var createPatchWorkspaceForUpdate = tasks.register("createPatchWorkspaceForUpdate", CreatePatchWorkspace.class, task -> {
             task.setGroup("neoform");
             task.getPatchesDir().set(project.getLayout().getProjectDirectory().dir("src/patches"));
             task.getSourcesZip().set(decompile.flatMap(Decompile::getOutput));
             task.getWorkspace().set(project.getLayout().getProjectDirectory().dir("workspace"));
+            task.getParallelism().set(neoForm.getParallelism());
+            task.getDecompiledFilesCache().set(buildDir.map(dir -> dir.dir("neoform/decompiled-files")));
+            if (splitJoinedJar != null) {
+                task.getResourcesZip().set(splitJoinedJar.flatMap(SplitJoinedJar::getResourcesZip));
+            }
             task.getUpdateMode().set(true);
         });
+        // Let the decompiler patch the sources of every shard while the other shards are still being decompiled.
+        // The patched files are staged in the build directory, and picked up by whichever workspace task runs.
+        if (neoForm.getPipelineWorkspace().get()) {
+            var taskGraph = project.getGradle().getTaskGraph();
+            decompile.configure(task -> {
+                task.getPipelinedWorkspace().set(buildDir.map(dir -> dir.dir("neoform/pipelined-workspace")));
+                task.getPipelinedPatchesDir().set(patchesDir);
+                task.getPipelinedUpdateMode().set(project.provider(() -> taskGraph.hasTask(createPatchWorkspaceForUpdate.get())));
+                task.getParallelism().set(neoForm.getParallelism());
+            });
+            for (var workspaceTask : List.of(createPatchWorkspace, createPatchWorkspaceForUpdate)) {
+                workspaceTask.configure(task -> task.getPipelinedWorkspace().set(decompile.flatMap(Decompile::getPipelinedWorkspace)));
+            }
+        }
         var createPatches = tasks.register("createPatches", CreatePatches.class, task -> {
             task.setGroup("neoform");
             task.getPatchesDir().set(project.getLayout().getProjectDirectory().dir("src/patches"));
             task.getSourcesZip().set(decompile.flatMap(Decompile::getOutput));
             task.getModifiedSources().set(project.getLayout().getProjectDirectory().dir("workspace/src/main/java"));
+            task.getIntermediateFormat().set(neoForm.getIntermediateFormat());
+            task.getStreaming().set(neoForm.getStreamingCreatePatches());
+            task.getIncremental().set(neoForm.getIncrementalCreatePatches());
+            task.getParallelism().set(neoForm.getParallelism());
+            task.getDiffEngine().set(neoForm.getDiffEngine());
+            task.getWorkspace().set(project.getLayout().getProjectDirectory().dir("workspace"));
         });
         var createConfig = tasks.register("createConfig", CreateConfig.class, task -> {
             task.setGroup("neoform");
@@ -133,6 +259,31 @@ public class NeoFormProjectPlugin implements Plugin<Project> {
             task.getResultsDirectory().set(project.getLayout().getBuildDirectory().dir("test-results"));
         });
         check.configure(task -> task.dependsOn(testData));
+
+        // The patches of a partial decompilation are incomplete and must not be published
+        if (neoForm.getFocusMode().get()) {
+            createDataZip.configure(task -> task.doFirst(ignored -> {
+                throw new GradleException("The data archive cannot be built in focus mode. Disable neoForm.focusMode and run createPatches first.");
+            }));
+        }
+    }
+
+    /**
+     * Lists the fully qualified names of all classes that have a patch.
+     */
+    private static List<String> getPatchedClasses(File patchesDir) throws IOException {
+        if (!patchesDir.isDirectory()) {
+            return List.of();
+        }
+        var patchesRoot = patchesDir.toPath();
+        try (var files = Files.walk(patchesRoot)) {
+            return files
+                    .map(file -> patchesRoot.relativize(file).toString().replace('\\', '/'))
+                    .filter(path -> path.endsWith(".java.patch"))
+                    .map(path -> path.substring(0, path.length() - ".java.patch".length()).replace('/', '.'))
+                    .sorted()
+                    .toList();
+        }
     }
 
     static Provider<RegularFile> prefixFilenameWithVersion(NeoFormExtension neoForm, Provider<Directory> dirProvider, String suffix) {
@@ -0,0 +1,16 @@
+package net.neoforged.neoform.dsl;
+
+/**
+ * The diff implementation used to create patches.
+ */
+public enum DiffEngine {
+    /**
+     * The diff of DiffPatch, which is also used to apply the patches.
+     */
+    DIFFPATCH,
+    /**
+     * A histogram diff, which anchors hunks on lines that are rare in the original file. It keeps hunks small
+     * when code was moved around, and only needs memory proportional to the size of the files.
+     */
+    HISTOGRAM
+}
@@ -0,0 +1,25 @@
+package net.neoforged.neoform.dsl;
+
+/**
+ * How intermediate artifacts, which are only read back by later tasks of the same build, are written.
+ * Published outputs, such as the data archive, are always fully compressed.
+ */
+public enum IntermediateFormat {
+    /**
+     * A zip with every entry compressed on the writing thread.
+     */
+    DEFLATED,
+    /**
+     * A zip without compression, which is the fastest to write and read, at the cost of disk space.
+     */
+    STORED,
+    /**
+     * A zip with the entries compressed concurrently on all processors, and written in order afterward.
+     */
+    PARALLEL_DEFLATED,
+    /**
+     * A plain directory tree. Only used where the consumer can read directories, which currently is the base of
+     * the diff in {@code createPatches}. All other artifacts are written as {@link #STORED} zips instead.
+     */
+    DIRECTORY
+}
@@ -56,8 +56,10 @@ public abstract class NeoFormExtension {
 
         preProcessJar = objects.newInstance(ToolSettings.class);
         preProcessJar.getJavaVersion().convention(getJavaVersion());
+        preProcessJar.getReuseProcess().convention(false);
         decompiler = objects.newInstance(ToolSettings.class);
         decompiler.getJavaVersion().convention(getJavaVersion());
+        decompiler.getReuseProcess().convention(false);
 
         getJavaCompilerOptions().convention(new ArrayList<>(List.of(
                 "-nowarn",
@@ -70,6 +72,21 @@ public abstract class NeoFormExtension {
         )));
 
         getNeoFormRuntimeVersion().set("1.0.45-pr-93-remove-hard-coding");
+
+        getParallelism().convention(Runtime.getRuntime().availableProcessors());
+        getUseDecompiledOutputStore().convention(false);
+        getDecompilerShards().convention(1);
+        getIncrementalDecompile().convention(false);
+        getUseClassDataSharing().convention(false);
+        getToolCpuBudget().convention(Runtime.getRuntime().availableProcessors());
+        getUseLibrariesAbiJar().convention(false);
+        getSplitResources().convention(false);
+        getPipelineWorkspace().convention(false);
+        getFocusMode().convention(false);
+        getIntermediateFormat().convention(IntermediateFormat.DEFLATED);
+        getStreamingCreatePatches().convention(false);
+        getIncrementalCreatePatches().convention(false);
+        getDiffEngine().convention(DiffEngine.DIFFPATCH);
     }
 
     public ToolSettings getDecompiler() {
@@ -119,4 +136,113 @@ public abstract class NeoFormExtension {
      * NeoFormRuntime artifact to use, this will default to the version used by MDG if not set.
      */
     public abstract Property<String> getNeoFormRuntimeVersion();
+
+    /**
+     * Number of threads to use when extracting, patching and diffing sources. Defaults to the number of available processors.
+     */
+    public abstract Property<Integer> getParallelism();
+
+    /**
+     * Share the pre-processed and decompiled Minecraft jar between all builds of the current user. If the store
+     * already contains them for the current Minecraft version and tool settings, downloading the Minecraft jars,
+     * pre-processing and decompiling them is skipped entirely. The store is not used in {@linkplain #getFocusMode() focus mode}.
+     */
+    public abstract Property<Boolean> getUseDecompiledOutputStore();
+
+    /**
+     * Number of shards to split the pre-processed jar into, by package, to decompile them in concurrent decompiler
+     * processes. The number of concurrent processes is further limited by the available processors and memory.
+     * Defaults to 1, which decompiles the jar in a single process.
+     */
+    public abstract Property<Integer> getDecompilerShards();
+
+    /**
+     * Keep the last pre-processed jar and its decompiled sources in the build directory, and only decompile the
+     * classes that changed when they are decompiled again, such as after switching to the next snapshot.
+     */
+    public abstract Property<Boolean> getIncrementalDecompile();
+
+    /**
+     * Record a class data sharing archive on the first run of each tool and start later runs of the tool with it,
+     * which speeds up JVM startup. Archives are stored in the Gradle user home and are only used with the Java
+     * installation, tool classpath and JVM arguments they were recorded with. Requires Java 13 or newer for the tools.
+     * <p>
+     * Disabled by default, since only the startup of the tools gets faster, which is small compared to the time
+     * spent decompiling, while every combination of tool settings leaves an archive of its own in the Gradle user home.
+     */
+    public abstract Property<Boolean> getUseClassDataSharing();
+
+    /**
+     * Total heap size that the decompiler and pre-processor processes of the build may use at the same time, in the
+     * format of -Xmx (i.e. 12g). Every tool process counts with its -Xmx, or a quarter of the physical memory without one.
+     * Defaults to three quarters of the physical memory.
+     */
+    public abstract Property<String> getToolMemoryBudget();
+
+    /**
+     * Number of decompiler and pre-processor processes the build may run at the same time.
+     * Defaults to the number of available processors.
+     */
+    public abstract Property<Integer> getToolCpuBudget();
+
+    /**
+     * Pass the decompiler a single jar with only the class headers and members of all Minecraft libraries, instead
+     * of the full library jars. This reduces the memory and I/O of the decompiler. The jar is cached in the
+     * Gradle user home for each set of libraries.
+     */
+    public abstract Property<Boolean> getUseLibrariesAbiJar();
+
+    /**
+     * Only pass the classes of the pre-processed jar to the decompiler, and write its resources into the workspace
+     * directly, instead of having the decompiler copy them into its output.
+     */
+    public abstract Property<Boolean> getSplitResources();
+
+    /**
+     * Patch the sources of every decompiler shard as soon as the shard is done, while the other shards are still
+     * being decompiled. The patched files are staged in the build directory, and creating the patch workspace copies
+     * them instead of applying their patches again. Only has an effect with more than one
+     * {@linkplain #getDecompilerShards() decompiler shard}.
+     */
+    public abstract Property<Boolean> getPipelineWorkspace();
+
+    /**
+     * Only decompile the {@linkplain #getFocus() focused classes}, using all other classes as libraries, for fast
+     * iteration on a subset of the sources. The decompiled sources are marked as partial, and creating patches or
+     * the data archive fails until the focus mode is disabled again.
+     */
+    public abstract Property<Boolean> getFocusMode();
+
+    /**
+     * Globs of the fully qualified names of the classes decompiled in {@linkplain #getFocusMode() focus mode},
+     * such as {@code net.minecraft.world.level.block.*} or {@code net.minecraft.client.**}. Nested classes are always
+     * decompiled along with their outer class. Defaults to the classes that have patches.
+     */
+    public abstract ListProperty<String> getFocus();
+
+    /**
+     * How intermediate zips that are only read back by later tasks are written, such as the decompiled sources
+     * when they are merged from shards and the Java sources diffed by {@code createPatches}. Zips written by the
+     * tools themselves, such as the pre-processed jar, are not affected, and published outputs are always compressed.
+     */
+    public abstract Property<IntermediateFormat> getIntermediateFormat();
+
+    /**
+     * Let {@code createPatches} diff each source against its entry in the decompiled sources directly, skipping
+     * identical sources and writing only the patches that changed, instead of diffing a copy of all Java sources.
+     */
+    public abstract Property<Boolean> getStreamingCreatePatches();
+
+    /**
+     * Let {@code createPatches} only diff the sources that changed since the workspace was created, based on the
+     * size, modification time and checksum recorded for every file of the workspace. All sources are diffed if
+     * the workspace has no such index or was created in update mode.
+     */
+    public abstract Property<Boolean> getIncrementalCreatePatches();
+
+    /**
+     * The diff used by {@code createPatches}. The {@linkplain DiffEngine#HISTOGRAM histogram} diff produces smaller
+     * hunks for large files whose code was moved around.
+     */
+    public abstract Property<DiffEngine> getDiffEngine();
 }
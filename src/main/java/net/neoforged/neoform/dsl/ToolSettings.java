@@ -17,4 +17,11 @@ public abstract class ToolSettings {
     public abstract Property<String> getRepositoryUrl();
 
     public abstract Property<Integer> getJavaVersion();
+
+    /**
+     * Run the tool in a worker process that stays alive between invocations, even across builds, to avoid
+     * JVM startup and warm-up costs. Only works for tools that do not call {@code System.exit}
+     * and keep no static state between runs.
+     */
+    public abstract Property<Boolean> getReuseProcess();
 }
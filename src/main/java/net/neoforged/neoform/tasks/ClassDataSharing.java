@@ -0,0 +1,99 @@
+package net.neoforged.neoform.tasks;
+
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Manages dynamic AppCDS archives for tool JVMs. The first run of a tool records the classes it loaded into an
+ * archive, and later runs map that archive instead of loading and verifying the classes again.
+ * <p>
+ * Archives are keyed by the Java installation, the tool classpath including file sizes and modification times,
+ * and the JVM arguments, so changing any of them records a new archive. The JVM additionally validates the archive
+ * itself and silently falls back to regular classloading if it does not match.
+ */
+final class ClassDataSharing {
+    /**
+     * Dynamic archives require at least Java 13.
+     */
+    static final int MIN_JAVA_VERSION = 13;
+
+    private final Path archive;
+    @Nullable
+    private final Path recordingArchive;
+
+    private ClassDataSharing(Path archive, @Nullable Path recordingArchive) {
+        this.archive = archive;
+        this.recordingArchive = recordingArchive;
+    }
+
+    static ClassDataSharing forTool(Path cacheDir, JavaLauncher launcher, Iterable<File> classpath, List<String> jvmArgs) throws IOException {
+        var metadata = launcher.getMetadata();
+        var keyLines = new StringBuilder();
+        keyLines.append("java=").append(metadata.getInstallationPath().getAsFile().getAbsolutePath()).append('\n');
+        keyLines.append("javaRuntimeVersion=").append(metadata.getJavaRuntimeVersion()).append('\n');
+        keyLines.append("jvmVersion=").append(metadata.getJvmVersion()).append('\n');
+        for (var file : classpath) {
+            keyLines.append("classpath=").append(file.getAbsolutePath())
+                    .append(',').append(file.length())
+                    .append(',').append(file.lastModified()).append('\n');
+        }
+        for (var jvmArg : jvmArgs) {
+            keyLines.append("jvmArg=").append(jvmArg).append('\n');
+        }
+        String key;
+        try {
+            key = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(keyLines.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        Files.createDirectories(cacheDir);
+        var archive = cacheDir.resolve(key + ".jsa");
+        if (Files.isRegularFile(archive)) {
+            return new ClassDataSharing(archive, null);
+        }
+        // Concurrent runs each record their own archive, and the first one to finish wins
+        return new ClassDataSharing(archive, cacheDir.resolve(key + "-" + UUID.randomUUID() + ".jsa.tmp"));
+    }
+
+    List<String> getJvmArgs() {
+        if (recordingArchive != null) {
+            return List.of("-XX:ArchiveClassesAtExit=" + recordingArchive.toAbsolutePath());
+        }
+        return List.of("-XX:SharedArchiveFile=" + archive.toAbsolutePath());
+    }
+
+    /**
+     * Publishes a newly recorded archive, and reports which archive was used to the tool log.
+     * The wall time of the tool is not compared against the recording run, since it is dominated by the work of
+     * the tool rather than by JVM startup.
+     */
+    void finish(boolean success, Writer log) throws IOException {
+        if (recordingArchive != null) {
+            try {
+                if (success && Files.isRegularFile(recordingArchive) && !Files.exists(archive)) {
+                    Files.move(recordingArchive, archive, StandardCopyOption.ATOMIC_MOVE);
+                    log.append("Recorded class data sharing archive ").append(archive.toString()).append('\n');
+                }
+            } finally {
+                Files.deleteIfExists(recordingArchive);
+            }
+            return;
+        }
+
+        log.append("Used class data sharing archive ").append(archive.toString()).append('\n');
+    }
+}
@@ -0,0 +1,156 @@
+package net.neoforged.neoform.tasks;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The parts of a class file that matter to the decompilation of other classes: its supertypes, the signatures of its
+ * members and which classes it references. Method bodies do not contribute to the {@link #abiHash()}.
+ *
+ * @param name       internal name of the class
+ * @param superName  internal name of the superclass, or null for {@code java/lang/Object} and modules
+ * @param interfaces internal names of the implemented interfaces
+ * @param references internal names of all classes referenced from the constant pool
+ * @param abiHash    hash over the access flags, supertypes, member signatures and inner class attributes
+ */
+record ClassFileInfo(String name, @Nullable String superName, List<String> interfaces, Set<String> references, String abiHash) {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final Pattern DESCRIPTOR_REFERENCE = Pattern.compile("L([^;<>.\\[]+)[;<]");
+
+    static ClassFileInfo read(byte[] classFile) throws IOException {
+        var in = new DataInputStream(new ByteArrayInputStream(classFile));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+
+        var constantPoolCount = in.readUnsignedShort();
+        var utf8 = new String[constantPoolCount];
+        var classNameIndex = new int[constantPoolCount];
+        for (var i = 1; i < constantPoolCount; i++) {
+            var tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1 -> utf8[i] = in.readUTF();
+                case 7 -> classNameIndex[i] = in.readUnsignedShort();
+                case 8, 16, 19, 20 -> in.readUnsignedShort();
+                case 15 -> {
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                }
+                case 3, 4, 9, 10, 11, 12, 17, 18 -> in.readInt();
+                case 5, 6 -> {
+                    in.readLong();
+                    i++; // Occupies two slots
+                }
+                default -> throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        var references = new HashSet<String>();
+        for (var i = 1; i < constantPoolCount; i++) {
+            if (classNameIndex[i] != 0) {
+                addReference(references, utf8[classNameIndex[i]]);
+            } else if (utf8[i] != null) {
+                // Descriptors and signatures; this over-approximates since string literals are included as well
+                var matcher = DESCRIPTOR_REFERENCE.matcher(utf8[i]);
+                while (matcher.find()) {
+                    references.add(matcher.group(1));
+                }
+            }
+        }
+
+        var abi = new StringBuilder();
+        var accessFlags = in.readUnsignedShort();
+        var name = utf8[classNameIndex[in.readUnsignedShort()]];
+        var superIndex = in.readUnsignedShort();
+        var superName = superIndex != 0 ? utf8[classNameIndex[superIndex]] : null;
+        var interfaces = new ArrayList<String>();
+        var interfaceCount = in.readUnsignedShort();
+        for (var i = 0; i < interfaceCount; i++) {
+            interfaces.add(utf8[classNameIndex[in.readUnsignedShort()]]);
+        }
+        abi.append(accessFlags).append(' ').append(name).append(' ').append(superName).append(' ').append(interfaces).append('\n');
+
+        for (var memberKind : List.of("field", "method")) {
+            var members = new ArrayList<String>();
+            var memberCount = in.readUnsignedShort();
+            for (var i = 0; i < memberCount; i++) {
+                var member = new StringBuilder(memberKind);
+                member.append(' ').append(in.readUnsignedShort());
+                member.append(' ').append(utf8[in.readUnsignedShort()]);
+                member.append(' ').append(utf8[in.readUnsignedShort()]);
+                readAttributes(in, utf8, classNameIndex, member);
+                members.add(member.toString());
+            }
+            members.sort(null);
+            for (var member : members) {
+                abi.append(member).append('\n');
+            }
+        }
+        readAttributes(in, utf8, classNameIndex, abi);
+
+        return new ClassFileInfo(name, superName, List.copyOf(interfaces), Set.copyOf(references), sha1(abi.toString()));
+    }
+
+    /**
+     * Reads the attributes, appending those that are part of the ABI and skipping the rest.
+     */
+    private static void readAttributes(DataInputStream in, String[] utf8, int[] classNameIndex, StringBuilder abi) throws IOException {
+        var attributeCount = in.readUnsignedShort();
+        for (var i = 0; i < attributeCount; i++) {
+            var attributeName = utf8[in.readUnsignedShort()];
+            var length = in.readInt();
+            switch (attributeName) {
+                case "Signature" -> abi.append(" signature=").append(utf8[in.readUnsignedShort()]);
+                case "InnerClasses" -> {
+                    var count = in.readUnsignedShort();
+                    for (var j = 0; j < count; j++) {
+                        var inner = in.readUnsignedShort();
+                        var outer = in.readUnsignedShort();
+                        var simpleName = in.readUnsignedShort();
+                        var flags = in.readUnsignedShort();
+                        abi.append(" inner=")
+                                .append(inner != 0 ? utf8[classNameIndex[inner]] : null).append('/')
+                                .append(outer != 0 ? utf8[classNameIndex[outer]] : null).append('/')
+                                .append(simpleName != 0 ? utf8[simpleName] : null).append('/')
+                                .append(flags);
+                    }
+                }
+                default -> in.skipNBytes(length);
+            }
+        }
+    }
+
+    private static void addReference(Set<String> references, String className) {
+        if (className.startsWith("[")) {
+            var matcher = DESCRIPTOR_REFERENCE.matcher(className);
+            while (matcher.find()) {
+                references.add(matcher.group(1));
+            }
+        } else {
+            references.add(className);
+        }
+    }
+
+    private static String sha1(String text) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package net.neoforged.neoform.tasks;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Merges the classes of all libraries into a single jar that only contains what the decompiler needs to know about
+ * them: class headers, signatures, annotations and non-private members, without method bodies or resources.
+ * <p>
+ * Since the same libraries are used by many builds, the jar is also kept in a cache keyed by the library set.
+ */
+@CacheableTask
+public abstract class CreateLibrariesAbiJar extends DefaultTask {
+    private static final String KEY_VERSION = "1";
+
+    @Classpath
+    public abstract ConfigurableFileCollection getLibraries();
+
+    /**
+     * Directory shared by all builds of the user, holding the ABI jar of every library set built before.
+     */
+    @Internal
+    public abstract DirectoryProperty getCacheDirectory();
+
+    @OutputFile
+    public abstract RegularFileProperty getOutput();
+
+    @TaskAction
+    public void createAbiJar() throws IOException {
+        var output = getOutput().getAsFile().get().toPath();
+        Files.deleteIfExists(output);
+
+        if (!getCacheDirectory().isPresent()) {
+            writeAbiJar(output);
+            return;
+        }
+
+        var cacheDir = getCacheDirectory().getAsFile().get().toPath();
+        var cachedJar = cacheDir.resolve(computeKey() + ".jar");
+        if (!Files.isRegularFile(cachedJar)) {
+            Files.createDirectories(cacheDir);
+            var tempFile = Files.createTempFile(cacheDir, "abi", ".tmp");
+            try {
+                writeAbiJar(tempFile);
+                Files.move(tempFile, cachedJar, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } else {
+            getLogger().info("Using cached ABI jar {}", cachedJar);
+        }
+        Files.copy(cachedJar, output);
+    }
+
+    private void writeAbiJar(Path output) throws IOException {
+        var writtenEntries = new HashSet<String>();
+        try (var out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(output)))) {
+            for (var library : getLibraries()) {
+                if (!library.isFile()) {
+                    continue;
+                }
+                try (var zip = new ZipFile(library)) {
+                    var entries = zip.entries();
+                    while (entries.hasMoreElements()) {
+                        var entry = entries.nextElement();
+                        var name = entry.getName();
+                        // Only the base version of multi-release jars is used, and the first library defining a class wins
+                        if (entry.isDirectory() || !name.endsWith(".class") || name.startsWith("META-INF/") || !writtenEntries.add(name)) {
+                            continue;
+                        }
+                        byte[] classFile;
+                        try (var in = zip.getInputStream(entry)) {
+                            classFile = in.readAllBytes();
+                        }
+                        var newEntry = new ZipEntry(name);
+                        newEntry.setTime(0);
+                        out.putNextEntry(newEntry);
+                        out.write(stripToAbi(classFile));
+                        out.closeEntry();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes method bodies, debug information and private members from a class. Concrete methods keep a body that
+     * only throws, since class files whose concrete methods have no code are invalid.
+     */
+    static byte[] stripToAbi(byte[] classFile) {
+        var reader = new ClassReader(classFile);
+        var writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+                if ((access & Opcodes.ACC_PRIVATE) != 0) {
+                    return null;
+                }
+                return super.visitField(access, name, descriptor, signature, value);
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                if ((access & Opcodes.ACC_PRIVATE) != 0) {
+                    return null;
+                }
+                var methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+                if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+                    return methodVisitor;
+                }
+                return new MethodVisitor(Opcodes.ASM9, methodVisitor) {
+                    @Override
+                    public void visitEnd() {
+                        // The code comes after annotations and parameters, which the reader visits first
+                        super.visitCode();
+                        super.visitInsn(Opcodes.ACONST_NULL);
+                        super.visitInsn(Opcodes.ATHROW);
+                        super.visitMaxs(0, 0);
+                        super.visitEnd();
+                    }
+                };
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Identifies the library set by the names and contents of the libraries.
+     */
+    private String computeKey() throws IOException {
+        var keyLines = new StringBuilder();
+        keyLines.append("version=").append(KEY_VERSION).append('\n');
+        for (File library : getLibraries()) {
+            keyLines.append(library.getName()).append(',').append(hashFile(library)).append('\n');
+        }
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(keyLines.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hashFile(File file) throws IOException {
+        try (var in = Files.newInputStream(file.toPath())) {
+            var digest = MessageDigest.getInstance("SHA-256");
+            var buffer = new byte[8192];
+            for (var read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
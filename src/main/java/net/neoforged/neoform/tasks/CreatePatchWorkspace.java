@@ -1,10 +1,5 @@
 package net.neoforged.neoform.tasks;
 
-import io.codechicken.diffpatch.cli.PatchOperation;
-import io.codechicken.diffpatch.util.Input;
-import io.codechicken.diffpatch.util.LogLevel;
-import io.codechicken.diffpatch.util.Output;
-import io.codechicken.diffpatch.util.PatchMode;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.GradleException;
 import org.gradle.api.file.DirectoryProperty;
@@ -17,20 +12,20 @@ import org.gradle.api.problems.Severity;
 import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.InputDirectory;
 import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 
 import javax.inject.Inject;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipFile;
 
 public abstract class CreatePatchWorkspace extends DefaultTask {
 
@@ -42,12 +37,60 @@ public abstract class CreatePatchWorkspace extends DefaultTask {
     @InputFile
     public abstract RegularFileProperty getSourcesZip();
 
+    /**
+     * Resources that were kept out of the decompiler. All of its entries are written to the workspace resources.
+     */
+    @InputFile
+    @Optional
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract RegularFileProperty getResourcesZip();
+
     @InputDirectory
     public abstract DirectoryProperty getPatchesDir();
 
     @org.gradle.api.tasks.Input
     public abstract Property<Boolean> getUpdateMode();
 
+    /**
+     * Number of threads used to extract and patch the sources.
+     */
+    @Internal
+    public abstract Property<Integer> getParallelism();
+
+    /**
+     * If enabled, files in the workspace whose inputs did not change since the last run and that were not modified
+     * are left alone, and only files that no longer exist in the sources are removed.
+     */
+    @Internal
+    public abstract Property<Boolean> getIncremental();
+
+    /**
+     * If enabled, files in the workspace that already have the expected content are not rewritten.
+     * This preserves their modification time, so that compiling the workspace stays incremental.
+     */
+    @Internal
+    public abstract Property<Boolean> getPreserveUnchangedFiles();
+
+    /**
+     * How files that are not patched are written to the workspace.
+     */
+    @Internal
+    public abstract Property<Materialization> getMaterialization();
+
+    /**
+     * Where the decompiled files are cached for {@link Materialization#HARD_LINK} and {@link Materialization#CLONE}.
+     * This should reside on the same file system as the workspace.
+     */
+    @Internal
+    public abstract DirectoryProperty getDecompiledFilesCache();
+
+    /**
+     * Patched files staged by {@link Decompile} while it was decompiling, see {@link Decompile#getPipelinedWorkspace()}.
+     * Not an input, since staged files are only used if they were created from the same file and patch.
+     */
+    @Internal
+    public abstract DirectoryProperty getPipelinedWorkspace();
+
     @OutputDirectory
     public abstract DirectoryProperty getWorkspace();
 
@@ -57,9 +100,27 @@ public abstract class CreatePatchWorkspace extends DefaultTask {
     public CreatePatchWorkspace(Problems problems) {
         this.problemReporter = problems.getReporter();
         this.getUpdateMode().convention(false);
+        this.getParallelism().convention(Runtime.getRuntime().availableProcessors());
+        this.getIncremental().convention(true);
+        this.getPreserveUnchangedFiles().convention(true);
+        this.getMaterialization().convention(Materialization.EXTRACT);
     }
 
-    record Patch(Path patchPath, byte[] content) {
+    public enum Materialization {
+        /**
+         * Extract every file from the sources zip.
+         */
+        EXTRACT,
+        /**
+         * Extract files once into the decompiled files cache and hard link them into the workspace.
+         * Falls back to copying if the file system does not support hard links.
+         */
+        HARD_LINK,
+        /**
+         * Extract files once into the decompiled files cache and copy them file-to-file into the workspace,
+         * which lets copy-on-write file systems clone them instead of duplicating the data.
+         */
+        CLONE
     }
 
     @TaskAction
@@ -72,101 +133,70 @@ public abstract class CreatePatchWorkspace extends DefaultTask {
         }
 
         var workspace = getWorkspace().getAsFile().get().toPath();
+        var sourcesZip = getSourcesZip().getAsFile().get().toPath();
 
-        var sourcesDir = workspace.resolve("src/main/java");
-        var resourcesDir = workspace.resolve("src/main/resources");
-        Files.createDirectories(sourcesDir);
-        Files.createDirectories(resourcesDir);
-
-        // Gather all patches
-        Map<String, Patch> patches = new HashMap<>();
-        var patchesBase = getPatchesDir().getAsFile().get().toPath();
-        for (var file : getPatchesDir().getAsFileTree().getFiles()) {
-            if (!file.getName().endsWith(".patch")) {
-                getLogger().warn("Found non-patch file in patch folder: {}", file);
-                continue;
-            }
-
-            var patchPath = file.toPath();
-            var targetPath = patchesBase.relativize(patchPath).toString().replace('\\', '/').replaceAll("\\.patch$", "");
-            var patchContent = Files.readAllBytes(patchPath);
-            patches.put(targetPath, new Patch(patchPath, patchContent));
+        // Only the focused classes are updated, and the rest of the workspace is left as it is
+        var partial = Decompile.isPartial(sourcesZip);
+        if (partial) {
+            getLogger().lifecycle("Only updating the focused classes in the workspace");
         }
 
-        var failedPatches = new HashSet<String>();
-        var successfulPatches = 0;
-        var dirsCreated = new HashSet<Path>();
-        try (var zip = new ZipFile(getSourcesZip().getAsFile().get())) {
-            var entries = zip.entries();
-            while (entries.hasMoreElements()) {
-                var entry = entries.nextElement();
-                if (entry.isDirectory()) {
-                    continue;
-                }
-
-                Path destination;
-                if (entry.getName().endsWith(".java")) {
-                    destination = sourcesDir;
-                } else {
-                    destination = resourcesDir;
-                }
-                destination = destination.resolve(entry.getName());
-
-                if (dirsCreated.add(destination.getParent())) {
-                    Files.createDirectories(destination.getParent());
-                }
+        // Index all patches by their target. Their content is only read when the target is being patched.
+        var patches = WorkspaceWriter.indexPatches(getPatchesDir().getAsFile().get().toPath(), getLogger());
+
+        // Files whose inputs and content did not change since the last run are skipped
+        var previousFiles = getIncremental().get() ? readPreviousFiles(workspace, updateMode) : Map.<String, WorkspaceManifest.Entry>of();
+
+        var removedFiles = 0;
+        WorkspaceWriter.Result result;
+        try (var writer = new WorkspaceWriter(
+                workspace,
+                patches,
+                updateMode,
+                previousFiles,
+                getPreserveUnchangedFiles().get(),
+                getMaterialization().get(),
+                getDecompiledFilesCache().getAsFile().map(File::toPath).getOrNull(),
+                getParallelism().get(),
+                line -> getLogger().lifecycle("{}", line))) {
+            if (getPipelinedWorkspace().isPresent()) {
+                writer.useStaged(getPipelinedWorkspace().getAsFile().get().toPath());
+            }
+            writer.add(sourcesZip, false);
+            if (getResourcesZip().isPresent()) {
+                writer.add(getResourcesZip().getAsFile().get().toPath(), true);
+            }
+            result = writer.finish();
 
-                try (var input = zip.getInputStream(entry)) {
-                    var patch = patches.remove(entry.getName());
-                    if (patch != null) {
-                        var rejectsOutput = new ByteArrayOutputStream();
-                        var builder = PatchOperation.builder()
-                                .logTo(line -> getLogger().lifecycle("{}", line))
-                                .baseInput(Input.SingleInput.pipe(input, entry.getName()))
-                                .patchesInput(Input.SingleInput.pipe(new ByteArrayInputStream(patch.content), patch.patchPath.toString()))
-                                .patchedOutput(Output.SingleOutput.path(destination))
-                                .level(LogLevel.WARN)
-                                .mode(PatchMode.OFFSET);
-
-                        if (updateMode) {
-                            builder.mode(PatchMode.FUZZY)
-                                .minFuzz(0.5f)
-                                .level(io.codechicken.diffpatch.util.LogLevel.ALL)
-                                .rejectsOutput(Output.SingleOutput.pipe(rejectsOutput));
-                        }
-
-                        var result = builder.build().operate();
-
-                        if (result.exit != 0) {
-                            problemReporter.report(PATCH_FAILED, problem -> {
-                                problem
-                                        .details("Applying the patch to " + entry.getName() + " failed.")
-                                        .fileLocation(patch.patchPath.toAbsolutePath().toString())
-                                        .severity(Severity.WARNING);
-                            });
-
-                            if (updateMode && rejectsOutput.size() > 0) {
-                                Path rejectsPath = workspace.resolve("rejects").resolve(entry.getName() + ".patch");
-                                if (dirsCreated.add(rejectsPath.getParent())) {
-                                    Files.createDirectories(rejectsPath.getParent());
-                                }
-                                Files.write(rejectsPath, rejectsOutput.toByteArray());
-                            }
-
-                            failedPatches.add(entry.getName());
-                        } else {
-                            successfulPatches++;
-                        }
-                    } else {
-                        Files.copy(input, destination, StandardCopyOption.REPLACE_EXISTING);
+            // Remove files we created previously, which no longer exist in the sources
+            for (var key : previousFiles.keySet()) {
+                if (!partial && !result.targets().contains(key)) {
+                    if (Files.deleteIfExists(workspace.resolve(key))) {
+                        removedFiles++;
                     }
                 }
             }
+
+            for (var job : result.failedPatches()) {
+                problemReporter.report(PATCH_FAILED, problem -> {
+                    problem
+                            .details("Applying the patch to " + job.entry().getName() + " failed.")
+                            .fileLocation(job.patch().patchPath().toAbsolutePath().toString())
+                            .severity(Severity.WARNING);
+                });
+            }
+
+            getLogger().lifecycle("Workspace files written: {}, unchanged: {}, removed: {}",
+                    result.writtenFiles(), result.unchangedFiles(), removedFiles);
         }
 
-        // Report patches we didn't use as unused
-        for (var patch : patches.values()) {
-            var patchPath = patch.patchPath.toAbsolutePath().toString();
+        // Failed patches are not recorded, so they are attempted again on the next run
+        var manifestFiles = partial ? result.mergeManifestFiles(previousFiles) : result.manifestFiles();
+        new WorkspaceManifest(updateMode, manifestFiles).write(workspace);
+
+        // Report patches we didn't use as unused. Patches of classes outside the focus are expected to be unused.
+        for (var patch : partial ? List.<WorkspaceWriter.Patch>of() : patches.values()) {
+            var patchPath = patch.patchPath().toAbsolutePath().toString();
             problemReporter.report(PATCH_TARGET_MISSING, problem -> {
                 problem
                         .details("The file targetted by the patch does not exist.")
@@ -175,10 +205,20 @@ public abstract class CreatePatchWorkspace extends DefaultTask {
             });
         }
 
-        if (!failedPatches.isEmpty()) {
-            var totalApplied = failedPatches.size() + successfulPatches;
-            throw new GradleException(failedPatches.size() + " out of " + totalApplied + " patches failed to apply.");
+        if (!result.failedPatches().isEmpty()) {
+            var totalApplied = result.failedPatches().size() + result.successfulPatches();
+            throw new GradleException(result.failedPatches().size() + " out of " + totalApplied + " patches failed to apply.");
         }
     }
 
+    /**
+     * Reads the manifest entries of the last run, unless it ran in a different mode.
+     */
+    static Map<String, WorkspaceManifest.Entry> readPreviousFiles(Path workspace, boolean updateMode) {
+        var previousManifest = WorkspaceManifest.read(workspace);
+        if (previousManifest == null || previousManifest.updateMode() != updateMode) {
+            return Map.of();
+        }
+        return previousManifest.files();
+    }
 }
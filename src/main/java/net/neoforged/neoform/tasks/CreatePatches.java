@@ -3,31 +3,45 @@ package net.neoforged.neoform.tasks;
 import io.codechicken.diffpatch.cli.DiffOperation;
 import io.codechicken.diffpatch.util.Input;
 import io.codechicken.diffpatch.util.Output;
+import net.neoforged.neoform.dsl.DiffEngine;
+import net.neoforged.neoform.dsl.IntermediateFormat;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.GradleException;
 import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.InputDirectory;
 import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.OutputDirectory;
 import org.gradle.api.tasks.TaskAction;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.BufferedOutputStream;
+import javax.inject.Inject;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 /**
  * This task compares the modified sources in the workspace against the original source zip produced
@@ -43,18 +57,88 @@ public abstract class CreatePatches extends DefaultTask {
     @OutputDirectory
     public abstract DirectoryProperty getPatchesDir();
 
+    /**
+     * How the Java sources are handed to the diff, which re-reads them right away.
+     */
+    @Internal
+    public abstract Property<IntermediateFormat> getIntermediateFormat();
+
+    /**
+     * If enabled, every Java source is diffed against its entry in the sources zip directly, without first copying
+     * the sources into a temporary zip, and changed patches are written straight into the patches directory.
+     */
+    @Internal
+    public abstract Property<Boolean> getStreaming();
+
+    /**
+     * If enabled, only sources that were added, deleted or modified since the workspace was created are diffed,
+     * and the patches of all other sources are left as they are. This relies on the index written to the
+     * {@linkplain #getWorkspace() workspace} along with the sources, and diffs all sources if it can't be used.
+     * Sources are always diffed one by one, like in {@linkplain #getStreaming() streaming} mode.
+     */
+    @Internal
+    public abstract Property<Boolean> getIncremental();
+
+    /**
+     * The workspace containing the modified sources, whose index is used in {@linkplain #getIncremental() incremental} mode.
+     */
+    @Internal
+    public abstract DirectoryProperty getWorkspace();
+
+    /**
+     * The diff used to create the patches. Any engine other than DiffPatch diffs the sources one by one,
+     * like in {@linkplain #getStreaming() streaming} mode.
+     */
+    @Internal
+    public abstract Property<DiffEngine> getDiffEngine();
+
+    /**
+     * Number of threads used to diff the sources one by one, in {@linkplain #getStreaming() streaming} or
+     * {@linkplain #getIncremental() incremental} mode.
+     */
+    @Internal
+    public abstract Property<Integer> getParallelism();
+
+    @Inject
+    public CreatePatches() {
+        getIntermediateFormat().convention(IntermediateFormat.DEFLATED);
+        getStreaming().convention(false);
+        getIncremental().convention(false);
+        getParallelism().convention(Runtime.getRuntime().availableProcessors());
+        getDiffEngine().convention(DiffEngine.DIFFPATCH);
+    }
+
     @TaskAction
     public void generateSourcePatches() throws IOException {
+        if (Decompile.isPartial(getSourcesZip().getAsFile().get().toPath())) {
+            throw new GradleException("The decompiled sources only contain the focused classes, which would remove the patches of all other classes. "
+                    + "Disable neoForm.focusMode and decompile all classes before creating patches.");
+        }
+
+        if (getStreaming().get() || getIncremental().get() || getDiffEngine().get() != DiffEngine.DIFFPATCH) {
+            generatePatchesStreaming(getSourcesZip().getAsFile().get().toPath(), getModifiedSources().get().getAsFile().toPath(),
+                    getPatchesDir().getAsFile().get().toPath());
+            return;
+        }
+
         // Let it create a folder in the temp dir
         var patchesDir = getTemporaryDir().toPath().resolve("patches");
 
-        // Build a zip for DiffPatch with only the .java files, otherwise it tries to remove the resources
-        var baseSourcesZip = new File(getTemporaryDir(), "base_sources.zip");
-        buildJavaSourceZip(getSourcesZip().getAsFile().get(), baseSourcesZip);
+        // Give DiffPatch only the .java files, otherwise it tries to remove the resources
+        Input.MultiInput baseInput;
+        if (getIntermediateFormat().get() == IntermediateFormat.DIRECTORY) {
+            var baseSourcesDir = getTemporaryDir().toPath().resolve("base_sources");
+            extractJavaSources(getSourcesZip().getAsFile().get(), baseSourcesDir);
+            baseInput = Input.MultiInput.folder(baseSourcesDir);
+        } else {
+            var baseSourcesZip = new File(getTemporaryDir(), "base_sources.zip");
+            buildJavaSourceZip(getSourcesZip().getAsFile().get(), baseSourcesZip, getIntermediateFormat().get());
+            baseInput = Input.MultiInput.detectedArchive(baseSourcesZip.toPath());
+        }
 
         var builder = DiffOperation.builder()
                 .logTo(getLogger()::lifecycle)
-                .baseInput(Input.MultiInput.detectedArchive(baseSourcesZip.toPath()))
+                .baseInput(baseInput)
                 .changedInput(Input.MultiInput.folder(getModifiedSources().get().getAsFile().toPath()))
                 .patchesOutput(Output.MultiOutput.folder(patchesDir))
                 .autoHeader(true)
@@ -81,7 +165,6 @@ public abstract class CreatePatches extends DefaultTask {
         var newPatches = new AtomicInteger();
         var unchangedPatches = new AtomicInteger();
         var modifiedPatches = new AtomicInteger();
-        var removedPatches = new AtomicInteger();
         Files.walkFileTree(patchesDir, new SimpleFileVisitor<>() {
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
@@ -113,7 +196,295 @@ public abstract class CreatePatches extends DefaultTask {
             }
         });
 
-        // Delete orphaned patches
+        var removedPatches = deleteOrphanedPatches(patchesDestination, patchesWritten);
+
+        getLogger().lifecycle("Patches added: {}, modified: {}, deleted: {}, unchanged: {}",
+                newPatches.get(), modifiedPatches.get(), removedPatches, unchangedPatches.get());
+    }
+
+    /**
+     * Diffs the Java sources of the workspace one by one against the entries of the sources zip, which are streamed
+     * straight into the diff. Sources that are identical to their entry are not diffed at all. A patch is only
+     * written if its content changed, and it is replaced atomically.
+     */
+    private void generatePatchesStreaming(Path sourcesZip, Path modifiedSources, Path patchesDestination) throws IOException {
+        var patchesWritten = new HashSet<Path>();
+        var newPatches = 0;
+        var modifiedPatches = 0;
+        var unchangedPatches = 0;
+        var removedPatches = 0;
+        var incremental = false;
+        try (var zip = new ZipFile(sourcesZip.toFile())) {
+            var baseEntries = new TreeMap<String, ZipEntry>();
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                if (!entry.isDirectory() && entry.getName().endsWith(".java")) {
+                    baseEntries.put(entry.getName(), entry);
+                }
+            }
+            var modifiedFiles = listSources(modifiedSources);
+
+            var dirtySources = getIncremental().get() ? findDirtySources(baseEntries, modifiedFiles, modifiedSources, patchesDestination) : null;
+
+            // Sources that only exist on one side are diffed against an empty file
+            Set<String> names;
+            if (dirtySources != null) {
+                getLogger().lifecycle("Diffing {} changed sources", dirtySources.size());
+                names = dirtySources;
+                incremental = true;
+            } else {
+                names = new TreeSet<>(baseEntries.keySet());
+                names.addAll(modifiedFiles);
+            }
+            // Every source is diffed on its own, and its patch is written as soon as it is ready
+            var executor = Executors.newFixedThreadPool(Math.max(1, getParallelism().get()));
+            try {
+                var results = new ArrayList<Future<PatchOutcome>>(names.size());
+                for (var name : names) {
+                    var baseEntry = baseEntries.get(name);
+                    var modifiedFile = modifiedFiles.contains(name) ? modifiedSources.resolve(name) : null;
+                    var destination = patchesDestination.resolve(name + ".patch");
+                    results.add(executor.submit(() -> writePatch(zip, baseEntry, modifiedFile, name, destination)));
+                }
+
+                // Results are collected in order, so the first failure is reported regardless of timing
+                var i = 0;
+                for (var name : names) {
+                    var destination = patchesDestination.resolve(name + ".patch");
+                    switch (Futures.await(results.get(i++))) {
+                        case ADDED -> newPatches++;
+                        case MODIFIED -> modifiedPatches++;
+                        case UNCHANGED -> unchangedPatches++;
+                        case NONE -> {
+                            // Patches of sources that are not diffed are kept, so the patches of reverted sources are removed here.
+                            // This happens after all patches were written, since it also removes directories that become empty.
+                            if (dirtySources != null && deletePatch(patchesDestination, destination)) {
+                                removedPatches++;
+                            }
+                            continue;
+                        }
+                    }
+                    patchesWritten.add(destination.toAbsolutePath());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        if (!incremental) {
+            removedPatches = deleteOrphanedPatches(patchesDestination, patchesWritten);
+        }
+
+        getLogger().lifecycle("Patches added: {}, modified: {}, deleted: {}, unchanged: {}",
+                newPatches, modifiedPatches, removedPatches, unchangedPatches);
+    }
+
+    private enum PatchOutcome {
+        ADDED,
+        MODIFIED,
+        UNCHANGED,
+        /**
+         * The source is unchanged, so it has no patch.
+         */
+        NONE
+    }
+
+    /**
+     * Diffs a single source and writes its patch, if it changed. May be called concurrently.
+     */
+    private PatchOutcome writePatch(ZipFile zip, @Nullable ZipEntry baseEntry, @Nullable Path modifiedFile, String name, Path destination) throws IOException {
+        var patch = diff(zip, baseEntry, modifiedFile, name);
+        if (patch == null) {
+            return PatchOutcome.NONE;
+        }
+
+        Files.createDirectories(destination.getParent());
+        if (!Files.exists(destination)) {
+            FileUtil.replaceAtomically(destination, patch);
+            return PatchOutcome.ADDED;
+        } else if (FileUtil.hasSize(destination, patch.length) && Arrays.equals(Files.readAllBytes(destination), patch)) {
+            return PatchOutcome.UNCHANGED;
+        } else {
+            FileUtil.replaceAtomically(destination, patch);
+            return PatchOutcome.MODIFIED;
+        }
+    }
+
+    /**
+     * Uses the index of the workspace to find the sources that have to be diffed again: those that were added or
+     * deleted since the workspace was created, were modified, or whose entry in the sources zip or patch changed.
+     * All other sources still match their patch, since the workspace was created by applying it.
+     *
+     * @return the relative paths of the sources to diff, or null if the index can't be used and all sources have to be diffed
+     */
+    @Nullable Set<String> findDirtySources(Map<String, ZipEntry> baseEntries, Set<String> modifiedFiles,
+                                           Path modifiedSources, Path patchesDestination) throws IOException {
+        if (!getWorkspace().isPresent()) {
+            getLogger().lifecycle("Diffing all sources, since the workspace is unknown");
+            return null;
+        }
+        var workspace = getWorkspace().getAsFile().get().toPath();
+        var manifest = WorkspaceManifest.read(workspace);
+        if (manifest == null) {
+            getLogger().lifecycle("Diffing all sources, since the workspace has no index");
+            return null;
+        }
+        // In update mode, the patches are expected to change wholesale once the workspace compiles again
+        if (manifest.updateMode()) {
+            getLogger().lifecycle("Diffing all sources, since the workspace was created in update mode");
+            return null;
+        }
+        if (!modifiedSources.startsWith(workspace)) {
+            getLogger().lifecycle("Diffing all sources, since they are not part of the workspace");
+            return null;
+        }
+        var prefix = workspace.relativize(modifiedSources).toString().replace('\\', '/') + "/";
+        var indexedSources = new HashMap<String, WorkspaceManifest.Entry>();
+        for (var entry : manifest.files().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                indexedSources.put(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+        }
+        if (indexedSources.isEmpty()) {
+            getLogger().lifecycle("Diffing all sources, since the workspace index has no sources");
+            return null;
+        }
+
+        var patches = new HashMap<String, Path>();
+        if (Files.isDirectory(patchesDestination)) {
+            for (var patch : WorkspaceWriter.indexPatches(patchesDestination, getLogger()).entrySet()) {
+                patches.put(patch.getKey(), patch.getValue().patchPath());
+            }
+        }
+
+        var names = new HashSet<>(baseEntries.keySet());
+        names.addAll(modifiedFiles);
+        names.addAll(indexedSources.keySet());
+        names.addAll(patches.keySet());
+        var dirtySources = new TreeSet<String>();
+        for (var name : names) {
+            var indexed = indexedSources.get(name);
+            var baseEntry = baseEntries.get(name);
+            var patch = patches.get(name);
+            if (indexed == null || baseEntry == null || !modifiedFiles.contains(name)
+                    || indexed.sourceCrc() != baseEntry.getCrc() || indexed.sourceSize() != baseEntry.getSize()
+                    || !indexed.hasSameContent(modifiedSources.resolve(name))
+                    || (patch == null ? indexed.patchHash() != null : !WorkspaceManifest.hash(Files.readAllBytes(patch)).equals(indexed.patchHash()))) {
+                dirtySources.add(name);
+            }
+        }
+        return dirtySources;
+    }
+
+    /**
+     * Diffs a single source file.
+     *
+     * @param baseEntry    the entry of the file in the sources zip, or null if the file was added
+     * @param modifiedFile the file in the workspace, or null if the file was deleted
+     * @return the patch, or null if the file is unchanged
+     */
+    private byte @Nullable [] diff(ZipFile zip, @Nullable ZipEntry baseEntry, @Nullable Path modifiedFile, String name) throws IOException {
+        if (baseEntry != null && modifiedFile != null && FileUtil.hasSize(modifiedFile, baseEntry.getSize())) {
+            try (var in = zip.getInputStream(baseEntry)) {
+                if (FileUtil.contentEquals(modifiedFile, in)) {
+                    return null;
+                }
+            }
+        }
+
+        if (getDiffEngine().get() == DiffEngine.HISTOGRAM) {
+            String baseContent;
+            try (var baseIn = baseEntry != null ? zip.getInputStream(baseEntry) : InputStream.nullInputStream()) {
+                baseContent = new String(baseIn.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            var modifiedContent = modifiedFile != null ? Files.readString(modifiedFile) : "";
+            var patch = HistogramDiff.diff(baseContent, modifiedContent, name);
+            return patch != null ? patch.getBytes(StandardCharsets.UTF_8) : null;
+        }
+
+        var patchOutput = new ByteArrayOutputStream();
+        int exit;
+        try (var baseIn = baseEntry != null ? zip.getInputStream(baseEntry) : InputStream.nullInputStream();
+             var modifiedIn = modifiedFile != null ? Files.newInputStream(modifiedFile) : InputStream.nullInputStream()) {
+            exit = DiffOperation.builder()
+                    .logTo(getLogger()::lifecycle)
+                    .baseInput(Input.SingleInput.pipe(baseIn, name))
+                    .changedInput(Input.SingleInput.pipe(modifiedIn, name))
+                    .patchesOutput(Output.SingleOutput.pipe(patchOutput))
+                    .autoHeader(true)
+                    .level(io.codechicken.diffpatch.util.LogLevel.WARN)
+                    .summary(false)
+                    .aPrefix("a/")
+                    .bPrefix("b/")
+                    .lineEnding("\n")
+                    .build()
+                    .operate()
+                    .exit;
+        }
+        if (exit != 0 && exit != 1) {
+            throw new GradleException("DiffPatch failed with exit code " + exit + " for " + name);
+        }
+        if (exit == 0 || patchOutput.size() == 0) {
+            return null;
+        }
+        return normalizeHeader(patchOutput.toByteArray(), name);
+    }
+
+    /**
+     * Names both sides of the patch after the path of the source, like diffing the whole source tree does,
+     * regardless of where the diffed content came from.
+     */
+    private static byte[] normalizeHeader(byte[] patch, String name) {
+        var lines = new String(patch, StandardCharsets.UTF_8).split("\n", 3);
+        if (lines.length < 3 || !lines[0].startsWith("--- ") || !lines[1].startsWith("+++ ")) {
+            return patch;
+        }
+        return ("--- a/" + name + "\n+++ b/" + name + "\n" + lines[2]).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Set<String> listSources(Path root) throws IOException {
+        var sources = new HashSet<String>();
+        if (!Files.isDirectory(root)) {
+            return sources;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                sources.add(root.relativize(file).toString().replace('\\', '/'));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return sources;
+    }
+
+    /**
+     * Deletes a single patch, along with the directories that are empty afterward.
+     *
+     * @return false if there was no such patch
+     */
+    private static boolean deletePatch(Path patchesDestination, Path patch) throws IOException {
+        if (!Files.deleteIfExists(patch)) {
+            return false;
+        }
+        for (var dir = patch.getParent(); !dir.equals(patchesDestination); dir = dir.getParent()) {
+            try (var children = Files.list(dir)) {
+                if (children.findAny().isPresent()) {
+                    break;
+                }
+            }
+            Files.delete(dir);
+        }
+        return true;
+    }
+
+    /**
+     * Deletes all patches that were not written, along with the directories that are empty afterward.
+     *
+     * @return the number of deleted patches
+     */
+    private static int deleteOrphanedPatches(Path patchesDestination, Set<Path> patchesWritten) throws IOException {
+        var removedPatches = new AtomicInteger();
         Files.walkFileTree(patchesDestination, new SimpleFileVisitor<>() {
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
@@ -139,23 +510,34 @@ public abstract class CreatePatches extends DefaultTask {
                 return FileVisitResult.CONTINUE;
             }
         });
-
-        getLogger().lifecycle("Patches added: {}, modified: {}, deleted: {}, unchanged: {}",
-                newPatches.get(), modifiedPatches.get(), removedPatches.get(), unchangedPatches.get());
+        return removedPatches.get();
     }
 
-    private static void buildJavaSourceZip(File fullSourceZip, File javaSourceZip) throws IOException {
+    private static void buildJavaSourceZip(File fullSourceZip, File javaSourceZip, IntermediateFormat format) throws IOException {
         try (var zip = new ZipFile(fullSourceZip);
-             var zipOut = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(javaSourceZip)))) {
+             var zipOut = IntermediateZipWriter.open(javaSourceZip.toPath(), format)) {
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                if (entry.getName().endsWith(".java")) {
+                    zipOut.copyEntry(zip, entry);
+                }
+            }
+        }
+    }
+
+    private static void extractJavaSources(File fullSourceZip, Path javaSourceDir) throws IOException {
+        FileUtil.deleteRecursively(javaSourceDir);
+        try (var zip = new ZipFile(fullSourceZip)) {
             var entries = zip.entries();
             while (entries.hasMoreElements()) {
                 var entry = entries.nextElement();
                 if (entry.getName().endsWith(".java")) {
-                    zipOut.putNextEntry(entry);
+                    var target = javaSourceDir.resolve(entry.getName());
+                    Files.createDirectories(target.getParent());
                     try (var in = zip.getInputStream(entry)) {
-                        in.transferTo(zipOut);
+                        Files.copy(in, target);
                     }
-                    zipOut.closeEntry();
                 }
             }
         }
@@ -1,11 +1,24 @@
 package net.neoforged.neoform.tasks;
 
+import net.neoforged.neoform.dsl.IntermediateFormat;
+import org.gradle.api.GradleException;
 import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputDirectory;
 import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
+import org.jetbrains.annotations.Nullable;
 
 import javax.inject.Inject;
 import java.io.BufferedWriter;
@@ -13,10 +26,31 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.ZipFile;
 
+@CacheableTask
 public abstract class Decompile extends ToolAction {
+    private static final String BASELINE_JAR = "joined.jar";
+    private static final String BASELINE_SOURCES = "sources.zip";
+    private static final String BASELINE_SETTINGS = "settings.txt";
+    /**
+     * The comment of a sources zip that only contains the focused classes, see {@link #getFocus()}.
+     */
+    private static final String PARTIAL_COMMENT = "NeoForm partial decompilation";
+    /**
+     * The comment of a sources zip that was decompiled with more shards than configured, after the decompiler ran out
+     * of memory.
+     */
+    private static final String FALLBACK_SHARDS_COMMENT = "NeoForm decompilation with fallback shards";
+
     @InputFile
+    @PathSensitive(PathSensitivity.RELATIVE)
     public abstract RegularFileProperty getInput();
 
     @OutputFile
@@ -25,10 +59,95 @@ public abstract class Decompile extends ToolAction {
     @Classpath
     public abstract ConfigurableFileCollection getInputClasspath();
 
+    /**
+     * Splits the classes of the input jar by package into this many shards, which are decompiled by
+     * concurrent decompiler processes and merged afterward. Every shard sees the other shards as libraries.
+     * Defaults to a single process decompiling the entire jar.
+     */
+    @Input
+    public abstract Property<Integer> getShards();
+
+    /**
+     * If set, the input jar and the decompiled sources are kept in this directory, and the next decompilation
+     * only decompiles the classes that changed since, along with the classes whose decompilation depends on them.
+     * Source files of all other classes are taken from the previous decompilation.
+     * This is local state, which is removed when the output is loaded from the build cache.
+     */
+    @Internal
+    public abstract DirectoryProperty getIncrementalBaseline();
+
+    /**
+     * If set, the max heap size that was needed after the decompiler ran out of memory is remembered in this file,
+     * and used from the start by the next decompilation.
+     * This is local state, which is removed when the output is loaded from the build cache.
+     */
+    @Internal
+    public abstract RegularFileProperty getRememberedMaxHeapSize();
+
+    /**
+     * If not empty, only the classes matching these globs are decompiled, along with their nested classes, while
+     * all other classes are only passed to the decompiler as libraries. The globs match fully qualified class names,
+     * where {@code *} matches within a package and {@code **} across packages. The output then only contains the
+     * sources of these classes and is {@linkplain #isPartial(Path) marked as partial}.
+     */
+    @Input
+    public abstract ListProperty<String> getFocus();
+
+    /**
+     * How the zips written by this task itself are written. This includes the output when it is merged from
+     * shards or a previous decompilation, but not when the decompiler writes it directly.
+     * Not an input, since it does not change the content of the output.
+     */
+    @Internal
+    public abstract Property<IntermediateFormat> getIntermediateFormat();
+
+    /**
+     * If set, the patches are applied to the sources of every shard as soon as the decompiler finished the shard,
+     * while the other shards are still being decompiled. The patched files are staged in this directory, laid out
+     * like the workspace, along with a manifest of the inputs they were created from. {@link CreatePatchWorkspace}
+     * copies staged files with the same inputs instead of applying their patches again.
+     * Only used for full decompilations with more than one shard.
+     */
+    @OutputDirectory
+    @Optional
+    public abstract DirectoryProperty getPipelinedWorkspace();
+
+    /**
+     * The patches applied to the {@linkplain #getPipelinedWorkspace() pipelined workspace}. Not an input, since the
+     * staged files are only used if their patch did not change.
+     */
+    @Internal
+    public abstract DirectoryProperty getPipelinedPatchesDir();
+
+    /**
+     * Whether the {@linkplain #getPipelinedWorkspace() pipelined workspace} is staged in update mode.
+     */
+    @Internal
+    public abstract Property<Boolean> getPipelinedUpdateMode();
+
+    /**
+     * Number of threads used to patch the sources of the {@linkplain #getPipelinedWorkspace() pipelined workspace}.
+     */
+    @Internal
+    public abstract Property<Integer> getParallelism();
+
     @Inject
     public Decompile() {
+        getShards().convention(1);
+        getFocus().convention(List.of());
+        getIntermediateFormat().convention(IntermediateFormat.DEFLATED);
+        getPipelinedUpdateMode().convention(false);
+        getParallelism().convention(Runtime.getRuntime().availableProcessors());
+        // The decompiler is retried after it ran out of memory
+        getExitOnOutOfMemory().convention(true);
+        getLocalState().register(
+                getIncrementalBaseline().map(List::of).orElse(List.of()),
+                getRememberedMaxHeapSize().map(List::of).orElse(List.of()));
+        getOutputs().cacheIf("The pipelined workspace depends on the patches, which are not inputs", task -> !getPipelinedWorkspace().isPresent());
+
         var layout = getProject().getLayout();
-        getLogFile().convention(layout.file(getOutput().map(rf -> {
+        // Only the location, since the log file is not an output and is read while the task runs
+        getLogFile().convention(layout.file(getOutput().getLocationOnly().map(rf -> {
             var outputZip = rf.getAsFile().toPath();
             return outputZip.resolveSibling(outputZip.getFileName() + "_decompiler.log").toFile();
         })));
@@ -39,17 +158,388 @@ public abstract class Decompile extends ToolAction {
         var inputJar = getInput().getAsFile().get();
         var outputZip = getOutput().getAsFile().get();
 
-        var librariesFile = new File(getTemporaryDir(), "libraries.cfg");
+        // The output may be a hard link into the decompiled output store, which must not be written to
+        Files.deleteIfExists(outputZip.toPath());
+
+        // A partial output is neither used as a baseline nor shared with other builds
+        if (!getFocus().get().isEmpty()) {
+            decompileFocused(inputJar.toPath(), outputZip.toPath(), getFocus().get());
+            return;
+        }
+
+        var baselineDir = getIncrementalBaseline().isPresent() ? getIncrementalBaseline().getAsFile().get().toPath() : null;
+        var settings = describeSettings();
+        if (baselineDir == null || !decompileIncrementally(inputJar.toPath(), outputZip.toPath(), baselineDir, settings)) {
+            decompileFully(inputJar.toPath(), outputZip.toPath());
+        }
+        if (baselineDir != null) {
+            updateBaseline(inputJar.toPath(), outputZip.toPath(), baselineDir, settings);
+        }
+    }
+
+    /**
+     * Decompiles only the classes that changed since the baseline, reusing the baseline sources for the rest.
+     *
+     * @return false if the baseline cannot be used and a full decompilation is needed
+     */
+    private boolean decompileIncrementally(Path inputJar, Path outputZip, Path baselineDir, String settings) throws IOException {
+        var baselineJar = baselineDir.resolve(BASELINE_JAR);
+        var baselineSources = baselineDir.resolve(BASELINE_SOURCES);
+        var baselineSettings = baselineDir.resolve(BASELINE_SETTINGS);
+        if (!Files.isRegularFile(baselineSettings) || !Files.readString(baselineSettings).equals(settings)) {
+            return false;
+        }
+
+        var plan = IncrementalDecompilation.plan(baselineJar, baselineSources, inputJar);
+        if (plan == null) {
+            getLogger().lifecycle("Too many classes changed since the last decompilation, decompiling all classes");
+            return false;
+        }
+        getLogger().lifecycle("Decompiling {} changed classes, reusing {} source files of the last decompilation",
+                plan.changedClasses().size(), plan.reusedSources().size());
+
+        var format = getIntermediateFormat().get();
+        var workDir = getTemporaryDir().toPath().resolve("incremental");
+        FileUtil.deleteRecursively(workDir);
+        Files.createDirectories(workDir);
+
+        Path changedSources = null;
+        if (!plan.changedClasses().isEmpty()) {
+            var changedJar = workDir.resolve("changed.jar");
+            var contextJar = workDir.resolve("context.jar");
+            changedSources = workDir.resolve("changed-sources.zip");
+            IncrementalDecompilation.writeJar(inputJar, plan.changedClasses(), changedJar, format);
+            IncrementalDecompilation.writeJar(inputJar, plan.contextClasses(), contextJar, format);
+            decompile(changedJar, changedSources, List.of(contextJar), null);
+        }
+        IncrementalDecompilation.merge(changedSources, baselineSources, plan.reusedSources(), inputJar, outputZip, format);
+        FileUtil.deleteRecursively(workDir);
+        return true;
+    }
+
+    /**
+     * Whether the given sources zip only contains the sources of the focused classes.
+     */
+    public static boolean isPartial(Path sourcesZip) throws IOException {
+        try (var zip = new ZipFile(sourcesZip.toFile())) {
+            return PARTIAL_COMMENT.equals(zip.getComment());
+        }
+    }
+
+    /**
+     * Whether the given sources zip contains all classes and was decompiled with the configured number of shards,
+     * so that it may be shared with other builds with the same settings.
+     */
+    static boolean isPublishable(Path sourcesZip) throws IOException {
+        try (var zip = new ZipFile(sourcesZip.toFile())) {
+            var comment = zip.getComment();
+            return !PARTIAL_COMMENT.equals(comment) && !FALLBACK_SHARDS_COMMENT.equals(comment);
+        }
+    }
+
+    private void decompileFocused(Path inputJar, Path outputZip, List<String> focus) throws IOException {
+        var focusPattern = compileFocus(focus);
+        var focusedClasses = new ArrayList<String>();
+        var contextClasses = new ArrayList<String>();
+        try (var zip = new ZipFile(inputJar.toFile())) {
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                var name = entries.nextElement().getName();
+                if (!name.endsWith(".class")) {
+                    continue;
+                }
+                // Nested classes follow their outer class
+                var className = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+                var nestedStart = className.indexOf('$', className.lastIndexOf('.') + 1);
+                var outerClassName = nestedStart != -1 ? className.substring(0, nestedStart) : className;
+                if (focusPattern.matcher(outerClassName).matches()) {
+                    focusedClasses.add(name);
+                } else {
+                    contextClasses.add(name);
+                }
+            }
+        }
+        if (focusedClasses.isEmpty()) {
+            throw new GradleException("No classes match the decompiler focus " + focus);
+        }
+        getLogger().lifecycle("Decompiling {} focused classes, using the other {} classes as libraries", focusedClasses.size(), contextClasses.size());
+
+        var format = getIntermediateFormat().get();
+        var workDir = getTemporaryDir().toPath().resolve("focus");
+        FileUtil.deleteRecursively(workDir);
+        Files.createDirectories(workDir);
+
+        var focusJar = workDir.resolve("focus.jar");
+        var contextJar = workDir.resolve("context.jar");
+        var focusSources = workDir.resolve("focus-sources.zip");
+        IncrementalDecompilation.writeJar(inputJar, focusedClasses, focusJar, format);
+        IncrementalDecompilation.writeJar(inputJar, contextClasses, contextJar, format);
+        decompile(focusJar, focusSources, List.of(contextJar), null);
+
+        try (var zip = new ZipFile(focusSources.toFile());
+             var out = IntermediateZipWriter.open(outputZip, format)) {
+            out.setComment(PARTIAL_COMMENT);
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                out.copyEntry(zip, entries.nextElement());
+            }
+        }
+        FileUtil.deleteRecursively(workDir);
+    }
+
+    /**
+     * Turns the focus globs into a single pattern matching fully qualified class names.
+     */
+    private static Pattern compileFocus(List<String> globs) {
+        var regex = new StringBuilder();
+        for (var glob : globs) {
+            if (!regex.isEmpty()) {
+                regex.append('|');
+            }
+            var literal = new StringBuilder();
+            for (var i = 0; i < glob.length(); i++) {
+                var c = glob.charAt(i);
+                if (c == '*' || c == '?') {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                    if (c == '?') {
+                        regex.append("[^.]");
+                    } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^.]*");
+                    }
+                } else {
+                    literal.append(c);
+                }
+            }
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Decompiles all classes, and stages the patched files in the pipelined workspace along the way if there is one.
+     * The manifest of the staged files is only written once all of them were written, so that the files of a
+     * failed decompilation are not used.
+     */
+    private void decompileFully(Path inputJar, Path outputZip) throws IOException {
+        if (!getPipelinedWorkspace().isPresent() || getShards().get() <= 1) {
+            decompile(inputJar, outputZip, List.of(), null);
+            return;
+        }
+
+        var workspace = getPipelinedWorkspace().getAsFile().get().toPath();
+        var updateMode = getPipelinedUpdateMode().get();
+        var previousFiles = CreatePatchWorkspace.readPreviousFiles(workspace, updateMode);
+        Files.deleteIfExists(workspace.resolve(WorkspaceManifest.PATH));
+        var patches = WorkspaceWriter.indexPatches(getPipelinedPatchesDir().getAsFile().get().toPath(), getLogger());
+        // Failed patches are only logged here, they are reported by CreatePatchWorkspace when it attempts them again
+        try (var writer = new WorkspaceWriter(
+                workspace,
+                patches,
+                updateMode,
+                previousFiles,
+                true,
+                CreatePatchWorkspace.Materialization.EXTRACT,
+                null,
+                getParallelism().get(),
+                line -> getLogger().info("{}", line))) {
+            decompile(inputJar, outputZip, List.of(), writer);
+            if (writer.isCancelled()) {
+                getLogger().lifecycle("Not staging patched files while decompiling, since the decompiler was retried");
+                return;
+            }
+            // The merged sources also contain the resources of the input jar, which are not part of any shard
+            writer.addPatched(outputZip);
+            var result = writer.finish();
+
+            // Remove staged files whose patch failed or no longer exists
+            for (var key : previousFiles.keySet()) {
+                if (!result.manifestFiles().containsKey(key)) {
+                    Files.deleteIfExists(workspace.resolve(key));
+                }
+            }
+            new WorkspaceManifest(updateMode, result.manifestFiles()).write(workspace);
+            getLogger().lifecycle("Patched files staged while decompiling: {}, unchanged: {}", result.writtenFiles(), result.unchangedFiles());
+        }
+    }
+
+    private static void updateBaseline(Path inputJar, Path outputZip, Path baselineDir, String settings) throws IOException {
+        Files.createDirectories(baselineDir);
+        // Invalidate the baseline first, so an interrupted update is never used
+        var baselineSettings = baselineDir.resolve(BASELINE_SETTINGS);
+        Files.deleteIfExists(baselineSettings);
+        FileUtil.linkOrCopy(inputJar, baselineDir.resolve(BASELINE_JAR));
+        FileUtil.linkOrCopy(outputZip, baselineDir.resolve(BASELINE_SOURCES));
+        Files.writeString(baselineSettings, settings);
+    }
+
+    /**
+     * Describes everything besides the input jar that affects the decompiled sources. A baseline is only
+     * used if it was produced with the same settings.
+     */
+    private String describeSettings() {
+        var settings = new StringBuilder();
+        settings.append("mainClass=").append(getMainClass().get()).append('\n');
+        for (var file : getToolClasspath()) {
+            settings.append("tool=").append(file.getName()).append('\n');
+        }
+        for (var arg : getArgs().get()) {
+            settings.append("arg=").append(arg).append('\n');
+        }
+        for (var arg : getJvmArgs().get()) {
+            settings.append("jvmArg=").append(arg).append('\n');
+        }
+        for (var file : getInputClasspath()) {
+            settings.append("library=").append(file.getName()).append('\n');
+        }
+        return settings.toString();
+    }
+
+    /**
+     * Decompiles the jar. If the decompiler runs out of memory, it is retried once with a larger heap, as far as
+     * the physical memory allows, or otherwise with the jar split into more shards, which need less memory each.
+     * The workspace writer is cancelled before retrying, since the retry deletes the shards of the failed attempt,
+     * and retries do not write to the workspace.
+     */
+    private void decompile(Path inputJar, Path outputZip, List<Path> additionalLibraries, @Nullable WorkspaceWriter workspaceWriter) throws IOException {
+        var rememberedMaxHeapSize = readRememberedMaxHeapSize();
+        if (rememberedMaxHeapSize > estimateMaxHeapSize()) {
+            getLogger().lifecycle("Decompiling with a max heap size of {} MB, which was needed by a previous decompilation", rememberedMaxHeapSize / (1024 * 1024));
+            setMaxHeapSize(rememberedMaxHeapSize);
+        }
+
+        var shards = getShards().get();
+        try {
+            decompile(inputJar, outputZip, shards, additionalLibraries, workspaceWriter);
+            return;
+        } catch (ToolOutOfMemoryException e) {
+            getLogger().lifecycle("{}", e.getMessage());
+        }
+        if (workspaceWriter != null) {
+            workspaceWriter.cancel();
+        }
+
+        var maxHeapSize = estimateMaxHeapSize();
+        var largerMaxHeapSize = Math.min(maxHeapSize * 2, getPhysicalMemorySize() / 4 * 3);
+        if (largerMaxHeapSize > maxHeapSize) {
+            getLogger().lifecycle("Retrying with a max heap size of {} MB", largerMaxHeapSize / (1024 * 1024));
+            setMaxHeapSize(largerMaxHeapSize);
+            decompile(inputJar, outputZip, shards, additionalLibraries, null);
+            rememberMaxHeapSize(largerMaxHeapSize);
+        } else {
+            var moreShards = Math.max(2, shards * 2);
+            getLogger().lifecycle("Not enough memory for a larger heap, retrying with {} shards", moreShards);
+            decompile(inputJar, outputZip, moreShards, additionalLibraries, null);
+        }
+    }
+
+    private void decompile(Path inputJar, Path outputZip, int shards, List<Path> additionalLibraries, @Nullable WorkspaceWriter workspaceWriter) throws IOException {
+        if (shards > 1) {
+            decompileSharded(inputJar, outputZip, shards, additionalLibraries, workspaceWriter);
+        } else {
+            var librariesFile = new File(getTemporaryDir(), "libraries.cfg");
+            writeLibraries(librariesFile, additionalLibraries);
+            exec(Map.of(
+                    "preProcessJarOutput", inputJar.toAbsolutePath().toString(),
+                    "output", outputZip.toAbsolutePath().toString(),
+                    "listLibrariesOutput", librariesFile.getAbsolutePath()
+            ));
+        }
+    }
+
+    private long readRememberedMaxHeapSize() {
+        if (!getRememberedMaxHeapSize().isPresent()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(Files.readString(getRememberedMaxHeapSize().getAsFile().get().toPath()).trim());
+        } catch (IOException | NumberFormatException ignored) {
+            return 0;
+        }
+    }
+
+    private void rememberMaxHeapSize(long maxHeapSize) throws IOException {
+        if (getRememberedMaxHeapSize().isPresent()) {
+            var file = getRememberedMaxHeapSize().getAsFile().get().toPath();
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, String.valueOf(maxHeapSize));
+        }
+    }
+
+    /**
+     * Decompiles the shards of the jar concurrently. Each shard is added to the workspace writer, if there is one,
+     * once its decompiler process exited successfully, which guarantees that its output is complete.
+     */
+    private void decompileSharded(Path inputJar, Path outputZip, int shards, List<Path> additionalLibraries, @Nullable WorkspaceWriter workspaceWriter) throws IOException {
+        var workDir = getTemporaryDir().toPath().resolve("shards");
+        FileUtil.deleteRecursively(workDir);
+        Files.createDirectories(workDir);
+
+        var shardJars = JarShards.split(inputJar, workDir, shards, getIntermediateFormat().get());
+        var concurrency = getShardConcurrency(shardJars.size());
+        getLogger().lifecycle("Decompiling {} shards with up to {} concurrent decompiler processes", shardJars.size(), concurrency);
+
+        var logFile = getEffectiveLogFile().toPath();
+        var logFileName = logFile.getFileName().toString();
+        if (logFileName.endsWith(".log")) {
+            logFileName = logFileName.substring(0, logFileName.length() - ".log".length());
+        }
+        var decompiledShards = new ArrayList<Path>(shardJars.size());
+        var invocations = new ArrayList<ToolInvocation>(shardJars.size());
+        for (var i = 0; i < shardJars.size(); i++) {
+            var shardJar = shardJars.get(i);
+            var decompiledShard = workDir.resolve("shard-" + i + "-sources.zip");
+            var librariesFile = workDir.resolve("shard-" + i + "-libraries.cfg").toFile();
+            var shardLibraries = new ArrayList<>(additionalLibraries);
+            for (var otherShard : shardJars) {
+                if (otherShard != shardJar) {
+                    shardLibraries.add(otherShard);
+                }
+            }
+            writeLibraries(librariesFile, shardLibraries);
+
+            decompiledShards.add(decompiledShard);
+            invocations.add(new ToolInvocation(Map.of(
+                    "preProcessJarOutput", shardJar.toAbsolutePath().toString(),
+                    "output", decompiledShard.toAbsolutePath().toString(),
+                    "listLibrariesOutput", librariesFile.getAbsolutePath()
+            ), logFile.resolveSibling(logFileName + "_shard" + i + ".log").toFile()));
+        }
+        if (workspaceWriter != null) {
+            execAll(invocations, concurrency, invocation -> workspaceWriter.addPatched(Path.of(invocation.placeholders().get("output"))));
+        } else {
+            execAll(invocations, concurrency);
+        }
+
+        var comment = shards != getShards().get() ? FALLBACK_SHARDS_COMMENT : null;
+        JarShards.merge(decompiledShards, inputJar, outputZip, getIntermediateFormat().get(), comment);
+        // The workspace writer may still be reading the decompiled shards, they are deleted by the next run instead
+        if (workspaceWriter == null) {
+            FileUtil.deleteRecursively(workDir);
+        }
+    }
+
+    /**
+     * Limits the number of concurrent decompiler processes by the available cores, and by how many
+     * of their heaps fit into three quarters of the physical memory.
+     */
+    private int getShardConcurrency(int shards) {
+        var cores = Runtime.getRuntime().availableProcessors();
+        var heapsThatFit = (int) Math.min(Integer.MAX_VALUE, getPhysicalMemorySize() / 4 * 3 / Math.max(1, estimateMaxHeapSize()));
+        return Math.max(1, Math.min(shards, Math.min(cores, heapsThatFit)));
+    }
+
+    private void writeLibraries(File librariesFile, List<Path> additionalLibraries) throws IOException {
         try (var writer = new BufferedWriter(new FileWriter(librariesFile, StandardCharsets.UTF_8))) {
             for (var file : getInputClasspath()) {
                 writer.append("--add-external=").append(file.getAbsolutePath()).append('\n');
             }
+            for (var library : additionalLibraries) {
+                writer.append("--add-external=").append(library.toAbsolutePath().toString()).append('\n');
+            }
         }
-
-        exec(Map.of(
-                "preProcessJarOutput", inputJar.getAbsolutePath(),
-                "output", outputZip.getAbsolutePath(),
-                "listLibrariesOutput", librariesFile.getAbsolutePath()
-        ));
     }
 }
@@ -0,0 +1,158 @@
+package net.neoforged.neoform.tasks;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A content-addressed store of the files in a decompiler output zip. Every file is extracted once into
+ * {@code objects/}, named by the SHA-256 of its content, and an index per zip remembers which entry maps to
+ * which object. Workspace files can then be hard-linked or cloned from the objects instead of being inflated again.
+ * <p>
+ * Since a hard-linked workspace file shares its content with the object, an edit made in the workspace also changes
+ * the object. Objects are therefore verified against the size and modification time recorded in the index before
+ * they are used, and re-extracted if they were modified.
+ */
+final class DecompiledFileCache {
+    private static final Gson GSON = new Gson();
+
+    private final Path root;
+    private final Path indexFile;
+    private final Map<String, CachedFile> files;
+    private volatile boolean dirty;
+
+    record CachedFile(String hash, long size, long lastModified) {
+    }
+
+    private DecompiledFileCache(Path root, Path indexFile, Map<String, CachedFile> files) {
+        this.root = root;
+        this.indexFile = indexFile;
+        this.files = new ConcurrentHashMap<>(files);
+    }
+
+    static DecompiledFileCache open(Path root, ZipFile zip) throws IOException {
+        var indexFile = root.resolve("index").resolve(computeZipKey(zip) + ".json");
+        Map<String, CachedFile> files = null;
+        if (Files.isRegularFile(indexFile)) {
+            try (var reader = Files.newBufferedReader(indexFile)) {
+                files = GSON.fromJson(reader, new TypeToken<Map<String, CachedFile>>() {
+                }.getType());
+            } catch (JsonParseException ignored) {
+            }
+        }
+        return new DecompiledFileCache(root, indexFile, files != null ? files : Map.of());
+    }
+
+    /**
+     * Returns the object holding the content of the given entry, extracting it first if needed.
+     */
+    Path getObject(ZipFile zip, ZipEntry entry) throws IOException {
+        var cached = files.get(entry.getName());
+        if (cached != null) {
+            var object = getObjectPath(cached.hash);
+            if (isIntact(object, cached)) {
+                return object;
+            }
+        }
+
+        byte[] content;
+        try (var in = zip.getInputStream(entry)) {
+            content = in.readAllBytes();
+        }
+        var hash = HexFormat.of().formatHex(sha256().digest(content));
+        var object = getObjectPath(hash);
+
+        // Another entry with the same content may have already produced the object
+        if (!FileUtil.hasSize(object, content.length) || !FileUtil.contentEquals(object, new ByteArrayInputStream(content))) {
+            Files.createDirectories(object.getParent());
+            var tempFile = Files.createTempFile(object.getParent(), hash, ".tmp");
+            try {
+                Files.write(tempFile, content);
+                Files.move(tempFile, object, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+
+        var attributes = Files.readAttributes(object, BasicFileAttributes.class);
+        files.put(entry.getName(), new CachedFile(hash, attributes.size(), attributes.lastModifiedTime().toMillis()));
+        dirty = true;
+        return object;
+    }
+
+    /**
+     * Persists the index if new objects have been extracted.
+     */
+    void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Files.createDirectories(indexFile.getParent());
+        var tempFile = Files.createTempFile(indexFile.getParent(), "index", ".tmp");
+        try {
+            try (var writer = Files.newBufferedWriter(tempFile)) {
+                GSON.toJson(new TreeMap<>(files), writer);
+            }
+            Files.move(tempFile, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        dirty = false;
+    }
+
+    private Path getObjectPath(String hash) {
+        return root.resolve("objects").resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static boolean isIntact(Path object, CachedFile cached) {
+        try {
+            var attributes = Files.readAttributes(object, BasicFileAttributes.class);
+            return attributes.size() == cached.size && attributes.lastModifiedTime().toMillis() == cached.lastModified;
+        } catch (IOException ignored) {
+            return false;
+        }
+    }
+
+    /**
+     * Identifies a zip by the names, checksums and sizes of its entries, which is cheap to compute from the
+     * central directory without inflating anything.
+     */
+    private static String computeZipKey(ZipFile zip) {
+        var digest = sha256();
+        var entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            var entry = entries.nextElement();
+            digest.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(Long.toString(entry.getCrc()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(Long.toString(entry.getSize()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
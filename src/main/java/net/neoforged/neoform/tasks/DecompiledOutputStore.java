@@ -0,0 +1,109 @@
+package net.neoforged.neoform.tasks;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A store shared by all builds of a user, holding the pre-processed jar and the decompiled sources for every
+ * combination of Minecraft jars and tool settings that has been decompiled before.
+ * Every entry is guarded by a file lock, so concurrent builds can safely read and publish entries.
+ */
+final class DecompiledOutputStore {
+    private static final String JOINED_JAR = "joined.jar";
+    private static final String SOURCES_ZIP = "sources.zip";
+    private static final String COMPLETE_MARKER = "complete";
+
+    private final Path root;
+
+    DecompiledOutputStore(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Places the stored outputs for the given key at the given locations, preferably as hard links.
+     *
+     * @return false if the store has no complete entry for the key
+     */
+    boolean restore(String key, Path joinedJar, Path sourcesZip) throws IOException {
+        return locked(key, entryDir -> {
+            if (!Files.isRegularFile(entryDir.resolve(COMPLETE_MARKER))) {
+                return false;
+            }
+            place(entryDir.resolve(JOINED_JAR), joinedJar);
+            place(entryDir.resolve(SOURCES_ZIP), sourcesZip);
+            return true;
+        });
+    }
+
+    /**
+     * Copies the outputs into the store, unless another build already published them.
+     */
+    void publish(String key, Path joinedJar, Path sourcesZip) throws IOException {
+        locked(key, entryDir -> {
+            var completeMarker = entryDir.resolve(COMPLETE_MARKER);
+            if (Files.isRegularFile(completeMarker)) {
+                return null;
+            }
+            Files.createDirectories(entryDir);
+            Files.copy(joinedJar, entryDir.resolve(JOINED_JAR), StandardCopyOption.REPLACE_EXISTING);
+            Files.copy(sourcesZip, entryDir.resolve(SOURCES_ZIP), StandardCopyOption.REPLACE_EXISTING);
+            Files.createFile(completeMarker);
+            return null;
+        });
+    }
+
+    private static void place(Path storedFile, Path destination) throws IOException {
+        if (Files.isRegularFile(destination)) {
+            if (Files.isSameFile(storedFile, destination)) {
+                return;
+            }
+            // Copies made by a previous restore keep the modification time of the stored file
+            if (Files.size(storedFile) == Files.size(destination)
+                    && Files.getLastModifiedTime(storedFile).equals(Files.getLastModifiedTime(destination))) {
+                return;
+            }
+        }
+        Files.createDirectories(destination.getParent());
+        FileUtil.linkOrCopy(storedFile, destination);
+    }
+
+    private <T> T locked(String key, LockedAction<T> action) throws IOException {
+        Files.createDirectories(root);
+        try (var channel = FileChannel.open(root.resolve(key + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            var lock = acquire(channel);
+            try {
+                return action.run(root.resolve(key));
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private static FileLock acquire(FileChannel channel) throws IOException {
+        while (true) {
+            try {
+                return channel.lock();
+            } catch (OverlappingFileLockException ignored) {
+                // Another build running in this JVM holds the lock
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the decompiled output store lock");
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface LockedAction<T> {
+        T run(Path entryDir) throws IOException;
+    }
+}
@@ -0,0 +1,142 @@
+package net.neoforged.neoform.tasks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+final class FileUtil {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private FileUtil() {
+    }
+
+    /**
+     * Writes the given content to a file, unless the file already has exactly that content.
+     * This preserves the modification time of unchanged files, which keeps downstream incremental tasks happy.
+     *
+     * @return true if the file was written
+     */
+    static boolean writeIfChanged(Path file, byte[] content) throws IOException {
+        if (hasSize(file, content.length)) {
+            try (var in = Files.newInputStream(file)) {
+                if (contentEquals(in, content)) {
+                    return false;
+                }
+            }
+        }
+        replace(file, content);
+        return true;
+    }
+
+    /**
+     * Writes the content to a new file in place of the given file. Unlike writing to the file directly,
+     * this never modifies the content of other hard links to the existing file.
+     */
+    static void replace(Path file, byte[] content) throws IOException {
+        Files.deleteIfExists(file);
+        Files.write(file, content);
+    }
+
+    /**
+     * Writes the content to a temporary file next to the given file and moves it into place, so that the file
+     * never has partial content, even if the build is interrupted while writing it.
+     */
+    static void replaceAtomically(Path file, byte[] content) throws IOException {
+        var tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.write(tempFile, content);
+            try {
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ignored) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Checks whether the file exists and has the given size, which is the cheap pre-check before comparing content.
+     */
+    static boolean hasSize(Path file, long size) throws IOException {
+        try {
+            return Files.size(file) == size;
+        } catch (NoSuchFileException ignored) {
+            return false;
+        }
+    }
+
+    /**
+     * Compares the content of a file against a stream without reading either fully into memory.
+     */
+    static boolean contentEquals(Path file, InputStream expected) throws IOException {
+        try (var in = Files.newInputStream(file)) {
+            var buffer = new byte[BUFFER_SIZE];
+            var expectedBuffer = new byte[BUFFER_SIZE];
+            while (true) {
+                var read = in.readNBytes(buffer, 0, buffer.length);
+                var expectedRead = expected.readNBytes(expectedBuffer, 0, expectedBuffer.length);
+                if (read != expectedRead || !Arrays.equals(buffer, 0, read, expectedBuffer, 0, expectedRead)) {
+                    return false;
+                }
+                if (read < buffer.length) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the target with a hard link to the source file, or a copy of it if hard links are not
+     * supported or the files reside on different file systems.
+     *
+     * @return true if a hard link was created
+     */
+    static boolean linkOrCopy(Path source, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (UnsupportedOperationException | FileSystemException ignored) {
+        }
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        return false;
+    }
+
+    /**
+     * Deletes a file or a directory including its content, if it exists.
+     */
+    static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        try (var stream = Files.walk(path)) {
+            for (var file : stream.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static boolean contentEquals(InputStream in, byte[] expected) throws IOException {
+        var buffer = new byte[BUFFER_SIZE];
+        var offset = 0;
+        while (true) {
+            var read = in.readNBytes(buffer, 0, buffer.length);
+            if (offset + read > expected.length || !Arrays.equals(buffer, 0, read, expected, offset, offset + read)) {
+                return false;
+            }
+            offset += read;
+            if (read < buffer.length) {
+                return offset == expected.length;
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package net.neoforged.neoform.tasks;
+
+import org.gradle.api.GradleException;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+final class Futures {
+    private Futures() {
+    }
+
+    /**
+     * Waits for the result of a future, unwrapping the exceptions thrown by it.
+     */
+    static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while waiting for background work", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            } else if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new GradleException("Background work failed", e.getCause());
+        }
+    }
+}
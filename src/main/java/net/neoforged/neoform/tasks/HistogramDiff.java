@@ -0,0 +1,326 @@
+package net.neoforged.neoform.tasks;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Computes unified diffs with the histogram algorithm known from Git. The longest run of common lines whose
+ * rarest line occurs least often in the original is used as the anchor of a region, and the lines before and
+ * after it are diffed the same way, until no common lines are left. Like Git, regions whose common lines all occur
+ * too often to be anchors are diffed with the Myers algorithm instead.
+ * <p>
+ * Patches are written in the format of DiffPatch, which applies them: a header naming both sides, followed by
+ * hunks with three lines of context, whose ranges always start at the line after the preceding one, even if
+ * they are empty.
+ */
+final class HistogramDiff {
+    private static final int CONTEXT_LINES = 3;
+
+    /**
+     * Lines occurring more often than this in a region are not used as anchors, which bounds the effort spent
+     * on lines such as closing braces.
+     */
+    private static final int MAX_OCCURRENCES = 64;
+
+    /**
+     * Regions that need more edits than this with the Myers algorithm are replaced as a whole, since the memory
+     * used grows with the square of the number of edits.
+     */
+    private static final int MAX_MYERS_EDITS = 1024;
+
+    private final String[] baseLines;
+    private final String[] modifiedLines;
+    private final int[] base;
+    private final int[] modified;
+    /**
+     * For every line of the original, the index of the line of the modified file it is kept as, or -1 if it is removed.
+     */
+    private final int[] baseToModified;
+
+    private HistogramDiff(String[] baseLines, String[] modifiedLines) {
+        this.baseLines = baseLines;
+        this.modifiedLines = modifiedLines;
+
+        // Lines are compared by identifiers, so that each line is only hashed once
+        var ids = new HashMap<String, Integer>();
+        this.base = new int[baseLines.length];
+        for (var i = 0; i < baseLines.length; i++) {
+            base[i] = ids.computeIfAbsent(baseLines[i], line -> ids.size());
+        }
+        this.modified = new int[modifiedLines.length];
+        for (var i = 0; i < modifiedLines.length; i++) {
+            modified[i] = ids.computeIfAbsent(modifiedLines[i], line -> ids.size());
+        }
+        this.baseToModified = new int[baseLines.length];
+        Arrays.fill(baseToModified, -1);
+    }
+
+    /**
+     * Diffs two texts line by line. A line break at the end of the text does not start another line.
+     * <p>
+     * Texts that only differ in their line breaks, or in whether they end with one, are deliberately treated as
+     * having the same lines: the patches of DiffPatch only consist of lines, and can't express such changes.
+     *
+     * @param name the path of the file, which names both sides of the patch
+     * @return the patch, or null if the texts have the same lines
+     */
+    static @Nullable String diff(String base, String modified, String name) {
+        var diff = new HistogramDiff(splitLines(base), splitLines(modified));
+        diff.matchLines();
+        return diff.writePatch(name);
+    }
+
+    private static String[] splitLines(String text) {
+        if (text.isEmpty()) {
+            return new String[0];
+        }
+        var lines = text.split("\r?\n", -1);
+        if (lines[lines.length - 1].isEmpty()) {
+            return Arrays.copyOf(lines, lines.length - 1);
+        }
+        return lines;
+    }
+
+    /**
+     * A region of both files that still has to be diffed, excluding the end indices.
+     */
+    private record Region(int baseStart, int baseEnd, int modifiedStart, int modifiedEnd) {
+    }
+
+    /**
+     * Fills {@link #baseToModified}. Regions are processed from a stack rather than recursively, since
+     * files with tens of thousands of lines could otherwise overflow the call stack.
+     */
+    private void matchLines() {
+        var regions = new ArrayDeque<Region>();
+        regions.push(new Region(0, base.length, 0, modified.length));
+        while (!regions.isEmpty()) {
+            var region = regions.pop();
+            var baseStart = region.baseStart;
+            var baseEnd = region.baseEnd;
+            var modifiedStart = region.modifiedStart;
+            var modifiedEnd = region.modifiedEnd;
+
+            // Common lines at the start and end are matched right away
+            while (baseStart < baseEnd && modifiedStart < modifiedEnd && base[baseStart] == modified[modifiedStart]) {
+                baseToModified[baseStart++] = modifiedStart++;
+            }
+            while (baseStart < baseEnd && modifiedStart < modifiedEnd && base[baseEnd - 1] == modified[modifiedEnd - 1]) {
+                baseToModified[--baseEnd] = --modifiedEnd;
+            }
+            if (baseStart == baseEnd || modifiedStart == modifiedEnd) {
+                continue;
+            }
+
+            // Chain the occurrences of every line in the original, and count them
+            var lastOccurrence = new HashMap<Integer, Integer>();
+            var occurrences = new HashMap<Integer, Integer>();
+            var previousOccurrence = new int[baseEnd - baseStart];
+            for (var i = baseStart; i < baseEnd; i++) {
+                previousOccurrence[i - baseStart] = lastOccurrence.getOrDefault(base[i], -1);
+                lastOccurrence.put(base[i], i);
+                occurrences.merge(base[i], 1, Integer::sum);
+            }
+
+            var bestBaseStart = -1;
+            var bestModifiedStart = -1;
+            var bestLength = 0;
+            var bestOccurrences = MAX_OCCURRENCES + 1;
+            var hasCommonLines = false;
+            for (var j = modifiedStart; j < modifiedEnd; ) {
+                var count = occurrences.get(modified[j]);
+                hasCommonLines |= count != null;
+                if (count == null || count > MAX_OCCURRENCES || count > bestOccurrences) {
+                    j++;
+                    continue;
+                }
+
+                var nextJ = j + 1;
+                for (var i = lastOccurrence.get(modified[j]); i != -1; i = previousOccurrence[i - baseStart]) {
+                    var runBaseStart = i;
+                    var runModifiedStart = j;
+                    while (runBaseStart > baseStart && runModifiedStart > modifiedStart && base[runBaseStart - 1] == modified[runModifiedStart - 1]) {
+                        runBaseStart--;
+                        runModifiedStart--;
+                    }
+                    var runBaseEnd = i + 1;
+                    var runModifiedEnd = j + 1;
+                    while (runBaseEnd < baseEnd && runModifiedEnd < modifiedEnd && base[runBaseEnd] == modified[runModifiedEnd]) {
+                        runBaseEnd++;
+                        runModifiedEnd++;
+                    }
+
+                    var runOccurrences = Integer.MAX_VALUE;
+                    for (var k = runBaseStart; k < runBaseEnd; k++) {
+                        runOccurrences = Math.min(runOccurrences, occurrences.get(base[k]));
+                    }
+                    var runLength = runBaseEnd - runBaseStart;
+                    if (runOccurrences < bestOccurrences || (runOccurrences == bestOccurrences && runLength > bestLength)) {
+                        bestBaseStart = runBaseStart;
+                        bestModifiedStart = runModifiedStart;
+                        bestLength = runLength;
+                        bestOccurrences = runOccurrences;
+                    }
+                    nextJ = Math.max(nextJ, runModifiedEnd);
+                }
+                j = nextJ;
+            }
+
+            // Without common lines, the whole region of the original is replaced
+            if (bestLength == 0) {
+                if (hasCommonLines) {
+                    matchLinesMyers(new Region(baseStart, baseEnd, modifiedStart, modifiedEnd));
+                }
+                continue;
+            }
+            for (var k = 0; k < bestLength; k++) {
+                baseToModified[bestBaseStart + k] = bestModifiedStart + k;
+            }
+            regions.push(new Region(bestBaseStart + bestLength, baseEnd, bestModifiedStart + bestLength, modifiedEnd));
+            regions.push(new Region(baseStart, bestBaseStart, modifiedStart, bestModifiedStart));
+        }
+    }
+
+    /**
+     * Matches the lines of a region along a shortest edit script, found with the greedy algorithm of Myers.
+     * The furthest reaching path of every diagonal is recorded after each number of edits, so that the script
+     * can be traced back from the end of the region.
+     */
+    private void matchLinesMyers(Region region) {
+        var baseLength = region.baseEnd - region.baseStart;
+        var modifiedLength = region.modifiedEnd - region.modifiedStart;
+        var maxEdits = Math.min(baseLength + modifiedLength, MAX_MYERS_EDITS);
+
+        // The line of the original reached on diagonal k is stored at index k + offset
+        var offset = maxEdits + 1;
+        var furthest = new int[2 * maxEdits + 3];
+        var trace = new ArrayList<int[]>();
+        for (var d = 0; d <= maxEdits; d++) {
+            // Diagonals -d - 1 to d + 1 are all that the steps with d edits read
+            trace.add(Arrays.copyOfRange(furthest, offset - d - 1, offset + d + 2));
+            for (var k = -d; k <= d; k += 2) {
+                var x = k == -d || (k != d && furthest[offset + k - 1] < furthest[offset + k + 1])
+                        ? furthest[offset + k + 1]
+                        : furthest[offset + k - 1] + 1;
+                var y = x - k;
+                while (x < baseLength && y < modifiedLength && base[region.baseStart + x] == modified[region.modifiedStart + y]) {
+                    x++;
+                    y++;
+                }
+                furthest[offset + k] = x;
+                if (x >= baseLength && y >= modifiedLength) {
+                    traceBack(region, trace);
+                    return;
+                }
+            }
+        }
+        // Too many edits, the whole region of the original is replaced
+    }
+
+    private void traceBack(Region region, List<int[]> trace) {
+        var x = region.baseEnd - region.baseStart;
+        var y = region.modifiedEnd - region.modifiedStart;
+        for (var d = trace.size() - 1; d >= 0; d--) {
+            var previous = trace.get(d);
+            var k = x - y;
+            var previousK = k == -d || (k != d && previous[k - 1 + d + 1] < previous[k + 1 + d + 1]) ? k + 1 : k - 1;
+            var previousX = previous[previousK + d + 1];
+            var previousY = previousX - previousK;
+            // The lines along the diagonal after the previous edit are common
+            while (x > previousX && y > previousY) {
+                x--;
+                y--;
+                baseToModified[region.baseStart + x] = region.modifiedStart + y;
+            }
+            x = previousX;
+            y = previousY;
+        }
+    }
+
+    /**
+     * Lines removed from the original and added in their place, excluding the end indices.
+     */
+    private record Change(int baseStart, int baseEnd, int modifiedStart, int modifiedEnd) {
+    }
+
+    private List<Change> collectChanges() {
+        var changes = new ArrayList<Change>();
+        var i = 0;
+        var j = 0;
+        while (i < base.length || j < modified.length) {
+            if (i < base.length && baseToModified[i] == j) {
+                i++;
+                j++;
+                continue;
+            }
+            var changeBaseStart = i;
+            var changeModifiedStart = j;
+            while (i < base.length && baseToModified[i] == -1) {
+                i++;
+            }
+            // The next kept line of the original is matched further down in the modified file
+            var nextMatch = i < base.length ? baseToModified[i] : modified.length;
+            j = nextMatch;
+            changes.add(new Change(changeBaseStart, i, changeModifiedStart, j));
+        }
+        return changes;
+    }
+
+    private @Nullable String writePatch(String name) {
+        var changes = collectChanges();
+        if (changes.isEmpty()) {
+            return null;
+        }
+
+        var patch = new StringBuilder();
+        patch.append("--- a/").append(name).append('\n');
+        patch.append("+++ b/").append(name).append('\n');
+
+        var first = 0;
+        while (first < changes.size()) {
+            // Changes whose context would touch or overlap end up in the same hunk
+            var last = first;
+            while (last + 1 < changes.size() && changes.get(last + 1).baseStart - changes.get(last).baseEnd <= 2 * CONTEXT_LINES) {
+                last++;
+            }
+
+            var firstChange = changes.get(first);
+            var lastChange = changes.get(last);
+            var leadingContext = Math.min(CONTEXT_LINES, firstChange.baseStart);
+            var trailingContext = Math.min(CONTEXT_LINES, base.length - lastChange.baseEnd);
+            var hunkBaseStart = firstChange.baseStart - leadingContext;
+            var hunkModifiedStart = firstChange.modifiedStart - leadingContext;
+            var hunkBaseLength = lastChange.baseEnd + trailingContext - hunkBaseStart;
+            var hunkModifiedLength = lastChange.modifiedEnd + trailingContext - hunkModifiedStart;
+            patch.append("@@ -").append(hunkBaseStart + 1).append(',').append(hunkBaseLength)
+                    .append(" +").append(hunkModifiedStart + 1).append(',').append(hunkModifiedLength)
+                    .append(" @@\n");
+
+            var contextStart = hunkBaseStart;
+            for (var c = first; c <= last; c++) {
+                var change = changes.get(c);
+                for (var k = contextStart; k < change.baseStart; k++) {
+                    patch.append(' ').append(baseLines[k]).append('\n');
+                }
+                for (var k = change.baseStart; k < change.baseEnd; k++) {
+                    patch.append('-').append(baseLines[k]).append('\n');
+                }
+                for (var k = change.modifiedStart; k < change.modifiedEnd; k++) {
+                    patch.append('+').append(modifiedLines[k]).append('\n');
+                }
+                contextStart = change.baseEnd;
+            }
+            for (var k = contextStart; k < lastChange.baseEnd + trailingContext; k++) {
+                patch.append(' ').append(baseLines[k]).append('\n');
+            }
+
+            first = last + 1;
+        }
+        return patch.toString();
+    }
+}
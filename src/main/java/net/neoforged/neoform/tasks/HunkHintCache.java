@@ -0,0 +1,137 @@
+package net.neoforged.neoform.tasks;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers where the hunks of patches that no longer apply in place were {@linkplain HunkLocator located}, keyed by
+ * the hash of the patched file and of the patch. Creating the workspace again from the same sources, such as when
+ * re-running update mode on the same snapshot, then does not have to search for the hunks again. Only update mode
+ * uses the cache, since patches apply where they were created outside of it.
+ * <p>
+ * Hints are only put once the located patch applied. Hints of patches that were not seen by the last run, whose
+ * hunks had to be located again, or whose located patch did not apply, are dropped, so the cache does not grow with
+ * every snapshot.
+ */
+final class HunkHintCache {
+    static final String PATH = ".neoform/hunk-hints.json";
+
+    private static final Gson GSON = new Gson();
+
+    private final Path file;
+    private final Map<String, Hint> previousHints;
+    private final Map<String, Hint> hints = new ConcurrentHashMap<>();
+    private final Set<String> retainedPatches = ConcurrentHashMap.newKeySet();
+    private final Set<String> discardedKeys = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param starts   for every hunk, the line of the original it starts at, counted from 0
+     * @param allExact whether every hunk matches exactly at its start
+     */
+    record Hint(List<Integer> starts, boolean allExact) {
+    }
+
+    private HunkHintCache(Path file, Map<String, Hint> previousHints) {
+        this.file = file;
+        this.previousHints = previousHints;
+    }
+
+    static HunkHintCache open(Path workspace) throws IOException {
+        var file = workspace.resolve(PATH);
+        Map<String, Hint> hints = null;
+        if (Files.isRegularFile(file)) {
+            try (var reader = Files.newBufferedReader(file)) {
+                hints = GSON.fromJson(reader, new TypeToken<Map<String, Hint>>() {
+                }.getType());
+            } catch (JsonParseException ignored) {
+            }
+        }
+        return new HunkHintCache(file, hints != null ? hints : Map.of());
+    }
+
+    /**
+     * @param minFuzz the minimum fuzz the hunks were located with, since it decides which locations are accepted
+     */
+    static String key(byte[] file, String patchHash, float minFuzz) {
+        return WorkspaceManifest.hash(file) + "-" + patchHash + "-" + minFuzz;
+    }
+
+    /**
+     * Keeps the hints of a patch that is still in use, even if it is not applied by this run.
+     */
+    void retain(String patchHash) {
+        retainedPatches.add(patchHash);
+    }
+
+    @Nullable
+    Hint get(String key) {
+        return previousHints.get(key);
+    }
+
+    void put(String key, Hint hint) {
+        hints.put(key, hint);
+    }
+
+    /**
+     * Drops the hint with the given key, such as when the patch did not apply with it.
+     */
+    void discard(String key) {
+        discardedKeys.add(key);
+    }
+
+    /**
+     * Persists the hints, unless they are the same as before.
+     */
+    void save() throws IOException {
+        var locatedPatches = new HashSet<String>();
+        for (var key : hints.keySet()) {
+            locatedPatches.add(getPatchAndFuzz(key));
+        }
+        var retainedHints = new TreeMap<>(hints);
+        retainedHints.keySet().removeAll(discardedKeys);
+        for (var entry : previousHints.entrySet()) {
+            var patchAndFuzz = getPatchAndFuzz(entry.getKey());
+            if (!discardedKeys.contains(entry.getKey()) && retainedPatches.contains(patchAndFuzz.substring(0, patchAndFuzz.indexOf('-'))) && !locatedPatches.contains(patchAndFuzz)) {
+                retainedHints.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (retainedHints.equals(previousHints)) {
+            return;
+        }
+        if (retainedHints.isEmpty()) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        Files.createDirectories(file.getParent());
+        var tempFile = Files.createTempFile(file.getParent(), "hunk-hints", ".tmp");
+        try {
+            try (var writer = Files.newBufferedWriter(tempFile)) {
+                GSON.toJson(retainedHints, writer);
+            }
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Strips the hash of the file from a key.
+     */
+    private static String getPatchAndFuzz(String key) {
+        return key.substring(key.indexOf('-') + 1);
+    }
+}
@@ -0,0 +1,292 @@
+package net.neoforged.neoform.tasks;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Moves the hunks of a patch to where they most likely apply in a changed file, before DiffPatch applies them in
+ * update mode. The lines of the file are indexed once, and the lines each hunk expects in the file vote for the
+ * offsets they occur at, so only a few candidate locations have to be scored instead of the whole file.
+ * <p>
+ * Hunks are only moved to locations that match better than the location they name: to an exact match, or to a
+ * location that matches at least the minimum fuzz of update mode. Hunks that don't match anywhere are left for
+ * the fuzzy matching of DiffPatch. Once the located patch applied, the locations can be kept as
+ * {@linkplain HunkHintCache hints}, so applying the same patch to the same file again does not have to search for them.
+ * <p>
+ * The {@linkplain #score score} of a location is only a proxy for the similarity DiffPatch computes, which also
+ * accepts lines at shifted positions and similar but not equal lines. It only decides where DiffPatch starts
+ * searching. Whether a hunk applies at all is still decided by DiffPatch, and only exact placements skip its fuzzy
+ * matching.
+ */
+final class HunkLocator {
+    private static final Pattern HUNK_HEADER = Pattern.compile("^@@ -(\\d+)(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@(.*)$");
+
+    /**
+     * Lines occurring more often than this in the file, such as closing braces, don't vote for offsets.
+     */
+    private static final int MAX_OCCURRENCES = 64;
+
+    /**
+     * Number of offsets with the most votes that are scored for each hunk.
+     */
+    private static final int MAX_CANDIDATES = 8;
+
+    /**
+     * @param patch    the patch with its hunks moved
+     * @param allExact whether every hunk now matches the file exactly, so the patch applies without fuzzy matching
+     * @param hintKey  the key of the hint, if hunks were moved and there are hints
+     * @param hint     the locations of the hunks, if they were moved
+     */
+    record Result(byte[] patch, boolean allExact, @Nullable String hintKey, HunkHintCache.@Nullable Hint hint) {
+        Result(byte[] patch, boolean allExact) {
+            this(patch, allExact, null, null);
+        }
+
+        /**
+         * Keeps the locations of the hunks for the next time, which must only be done once the located patch applied.
+         */
+        void recordHint(HunkHintCache hints) {
+            if (hintKey != null && hint != null) {
+                hints.put(hintKey, hint);
+            }
+        }
+
+        /**
+         * Forgets the locations of the hunks, since the located patch did not apply.
+         */
+        void discardHint(HunkHintCache hints) {
+            if (hintKey != null) {
+                hints.discard(hintKey);
+            }
+        }
+    }
+
+    private record Hunk(int headerLine, int baseStart, int modifiedStart, String trailer, List<String> baseLines) {
+    }
+
+    private final List<String> fileLines;
+    private @Nullable Map<String, List<Integer>> index;
+
+    private HunkLocator(List<String> fileLines) {
+        this.fileLines = fileLines;
+    }
+
+    /**
+     * @param hints     hints from earlier runs, which are used instead of searching for hunks that don't match in place.
+     *                  The locations found by this run are only {@linkplain Result#recordHint recorded} by the caller.
+     * @param patchHash the hash of the patch, which identifies it in the hints
+     */
+    static Result locate(byte[] file, byte[] patch, float minFuzz, @Nullable HunkHintCache hints, String patchHash) {
+        var patchLines = splitLines(new String(patch, StandardCharsets.UTF_8));
+        var hunks = parseHunks(patchLines);
+        if (hunks == null) {
+            // Leave patches we don't understand to DiffPatch
+            return new Result(patch, false);
+        }
+
+        // Most patches still apply where they were created, which needs neither the hints nor the index
+        var locator = new HunkLocator(splitLines(new String(file, StandardCharsets.UTF_8)));
+        if (hunks.stream().allMatch(hunk -> locator.matchesExactly(hunk.baseLines, hunk.baseStart))) {
+            return new Result(patch, true);
+        }
+
+        String hintKey = null;
+        if (hints != null) {
+            hintKey = HunkHintCache.key(file, patchHash, minFuzz);
+            var hint = hints.get(hintKey);
+            if (hint != null && locator.accepts(hint, hunks, minFuzz)) {
+                return new Result(relocate(patch, patchLines, hunks, hint.starts()), hint.allExact(), hintKey, hint);
+            }
+        }
+
+        var starts = new ArrayList<Integer>(hunks.size());
+        var allExact = true;
+        var minStart = 0;
+        for (var hunk : hunks) {
+            var start = hunk.baseStart;
+            var length = hunk.baseLines.size();
+            if (length > 0 && !locator.matchesExactly(hunk.baseLines, start)) {
+                start = locator.findBestStart(hunk.baseLines, start, minStart, minFuzz);
+                allExact &= locator.matchesExactly(hunk.baseLines, start);
+            }
+            starts.add(start);
+            minStart = Math.max(minStart, start + length);
+        }
+
+        return new Result(relocate(patch, patchLines, hunks, starts), allExact, hintKey, new HunkHintCache.Hint(starts, allExact));
+    }
+
+    /**
+     * Checks that a hint fits the patch, and that its locations would have been found by searching: hunks it claims
+     * to match exactly must still do, and hunks it moved must match at least the minimum fuzz.
+     */
+    private boolean accepts(HunkHintCache.Hint hint, List<Hunk> hunks, float minFuzz) {
+        if (hint.starts() == null || hint.starts().size() != hunks.size()) {
+            return false;
+        }
+        for (var i = 0; i < hunks.size(); i++) {
+            var hunk = hunks.get(i);
+            var start = hint.starts().get(i);
+            if (hint.allExact() || hunk.baseLines.isEmpty()) {
+                if (!matchesExactly(hunk.baseLines, start)) {
+                    return false;
+                }
+            } else if (start != hunk.baseStart && score(hunk.baseLines, start) < minFuzz) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rewrites the headers of all hunks that start at a different line of the original.
+     */
+    private static byte[] relocate(byte[] patch, List<String> patchLines, List<Hunk> hunks, List<Integer> starts) {
+        var moved = false;
+        for (var i = 0; i < hunks.size(); i++) {
+            var hunk = hunks.get(i);
+            var offset = starts.get(i) - hunk.baseStart;
+            if (offset != 0) {
+                patchLines.set(hunk.headerLine, "@@ -" + (hunk.baseStart + offset + 1) + "," + hunk.baseLines.size()
+                        + " +" + (hunk.modifiedStart + offset + 1) + "," + countModifiedLines(patchLines, hunk.headerLine)
+                        + " @@" + hunk.trailer);
+                moved = true;
+            }
+        }
+
+        if (!moved) {
+            return patch;
+        }
+        var relocated = new StringBuilder();
+        for (var line : patchLines) {
+            relocated.append(line).append('\n');
+        }
+        return relocated.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finds the location that matches the lines best, preferring the expected location, and then the closest one.
+     *
+     * @return the expected location if no other location matches better
+     */
+    private int findBestStart(List<String> baseLines, int expected, int minStart, float minFuzz) {
+        var votes = new HashMap<Integer, Integer>();
+        var index = getIndex();
+        for (var k = 0; k < baseLines.size(); k++) {
+            var positions = index.get(baseLines.get(k));
+            if (positions == null || positions.size() > MAX_OCCURRENCES) {
+                continue;
+            }
+            for (var position : positions) {
+                var start = position - k;
+                if (start >= minStart && start + baseLines.size() <= fileLines.size()) {
+                    votes.merge(start, 1, Integer::sum);
+                }
+            }
+        }
+
+        var candidates = new ArrayList<>(votes.entrySet());
+        candidates.sort(Comparator.comparing((Map.Entry<Integer, Integer> e) -> e.getValue()).reversed()
+                .thenComparingInt(e -> Math.abs(e.getKey() - expected)));
+
+        var bestStart = expected;
+        var bestScore = score(baseLines, expected);
+        for (var i = 0; i < Math.min(MAX_CANDIDATES, candidates.size()); i++) {
+            var start = candidates.get(i).getKey();
+            var score = score(baseLines, start);
+            if (score < minFuzz) {
+                continue;
+            }
+            if (score > bestScore || (score == bestScore && bestStart != expected && Math.abs(start - expected) < Math.abs(bestStart - expected))) {
+                bestStart = start;
+                bestScore = score;
+            }
+        }
+        return bestStart;
+    }
+
+    /**
+     * The fraction of the lines that are found at their position when the hunk starts at the given line.
+     * Unlike the fuzzy matching of DiffPatch, this does not give credit for similar lines or lines that moved.
+     */
+    private float score(List<String> baseLines, int start) {
+        var matching = 0;
+        for (var k = 0; k < baseLines.size(); k++) {
+            var line = start + k;
+            if (line >= 0 && line < fileLines.size() && fileLines.get(line).equals(baseLines.get(k))) {
+                matching++;
+            }
+        }
+        return (float) matching / baseLines.size();
+    }
+
+    private boolean matchesExactly(List<String> baseLines, int start) {
+        if (start < 0 || start + baseLines.size() > fileLines.size()) {
+            return false;
+        }
+        return fileLines.subList(start, start + baseLines.size()).equals(baseLines);
+    }
+
+    /**
+     * Indexes the positions of every line of the file, once the first hunk does not match where it expects to.
+     */
+    private Map<String, List<Integer>> getIndex() {
+        if (index == null) {
+            index = new HashMap<>();
+            for (var i = 0; i < fileLines.size(); i++) {
+                index.computeIfAbsent(fileLines.get(i), line -> new ArrayList<>()).add(i);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return null if the patch contains anything else than a header and hunks
+     */
+    private static @Nullable List<Hunk> parseHunks(List<String> patchLines) {
+        var hunks = new ArrayList<Hunk>();
+        Hunk hunk = null;
+        for (var i = 0; i < patchLines.size(); i++) {
+            var line = patchLines.get(i);
+            var header = HUNK_HEADER.matcher(line);
+            if (header.matches()) {
+                hunk = new Hunk(i, Integer.parseInt(header.group(1)) - 1, Integer.parseInt(header.group(3)) - 1, header.group(5), new ArrayList<>());
+                hunks.add(hunk);
+            } else if (hunk == null) {
+                if (!line.startsWith("--- ") && !line.startsWith("+++ ")) {
+                    return null;
+                }
+            } else if (line.startsWith(" ") || line.startsWith("-")) {
+                hunk.baseLines.add(line.substring(1));
+            } else if (!line.startsWith("+")) {
+                return null;
+            }
+        }
+        return hunks;
+    }
+
+    private static int countModifiedLines(List<String> patchLines, int headerLine) {
+        var count = 0;
+        for (var i = headerLine + 1; i < patchLines.size() && !patchLines.get(i).startsWith("@@"); i++) {
+            if (!patchLines.get(i).startsWith("-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static List<String> splitLines(String text) {
+        var lines = new ArrayList<>(List.of(text.split("\r?\n", -1)));
+        if (lines.get(lines.size() - 1).isEmpty()) {
+            lines.remove(lines.size() - 1);
+        }
+        return lines;
+    }
+}
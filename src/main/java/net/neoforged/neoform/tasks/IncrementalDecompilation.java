@@ -0,0 +1,287 @@
+package net.neoforged.neoform.tasks;
+
+import net.neoforged.neoform.dsl.IntermediateFormat;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Determines which classes of a pre-processed jar need to be decompiled again, given the jar and the sources
+ * of a previous decompilation, and combines the result with the reused sources.
+ * <p>
+ * Classes are handled in groups of a top-level class and its nested classes, since the decompiler produces a
+ * single source file for each group. A group is decompiled again if
+ * <ul>
+ *     <li>the bytes of any of its classes changed, or classes were added to or removed from it,</li>
+ *     <li>it references a class whose ABI changed, or a class with a supertype whose ABI changed,</li>
+ *     <li>a class was added to or removed from its package, since that may change which names need to be qualified.</li>
+ * </ul>
+ * All other groups reuse their previous source file.
+ */
+final class IncrementalDecompilation {
+    /**
+     * If more than this fraction of the groups would have to be decompiled, a full decompilation is cheaper.
+     */
+    private static final double MAX_CHANGED_FRACTION = 0.5;
+
+    private IncrementalDecompilation() {
+    }
+
+    /**
+     * @param changedClasses class entries of the current jar that must be decompiled
+     * @param contextClasses class entries of the current jar that are only needed as libraries
+     * @param reusedSources  entries of the previous sources that are still valid
+     */
+    record Plan(Set<String> changedClasses, Set<String> contextClasses, Set<String> reusedSources) {
+    }
+
+    /**
+     * Plans the incremental decompilation, or returns null if a full decompilation should be done instead.
+     */
+    @Nullable
+    static Plan plan(Path previousJar, Path previousSources, Path currentJar) throws IOException {
+        try (var previousZip = new ZipFile(previousJar.toFile());
+             var previousSourcesZip = new ZipFile(previousSources.toFile());
+             var currentZip = new ZipFile(currentJar.toFile())) {
+            var previousClasses = readClasses(previousZip);
+            var currentClasses = readClasses(currentZip);
+
+            var changedGroups = new HashSet<String>();
+            var abiChangedClasses = new HashSet<String>();
+            var packagesWithAddedOrRemovedClasses = new HashSet<String>();
+            for (var entry : currentClasses.values()) {
+                var previous = previousClasses.get(entry.getName());
+                if (previous == null) {
+                    abiChangedClasses.add(getClassName(entry));
+                    packagesWithAddedOrRemovedClasses.add(getPackage(entry.getName()));
+                } else if (!hasSameContent(previousZip, previous, currentZip, entry)) {
+                    var previousInfo = ClassFileInfo.read(readAllBytes(previousZip, previous));
+                    var currentInfo = ClassFileInfo.read(readAllBytes(currentZip, entry));
+                    if (!previousInfo.abiHash().equals(currentInfo.abiHash())) {
+                        abiChangedClasses.add(getClassName(entry));
+                    }
+                } else {
+                    continue;
+                }
+                changedGroups.add(getGroup(entry.getName(), currentClasses));
+            }
+            for (var entry : previousClasses.values()) {
+                if (!currentClasses.containsKey(entry.getName())) {
+                    abiChangedClasses.add(getClassName(entry));
+                    packagesWithAddedOrRemovedClasses.add(getPackage(entry.getName()));
+                    var group = getGroup(entry.getName(), previousClasses);
+                    if (currentClasses.containsKey(group + ".class")) {
+                        changedGroups.add(group);
+                    }
+                }
+            }
+
+            // Read the supertypes and references of every class in the current jar
+            var infos = new HashMap<String, ClassFileInfo>();
+            for (var entry : currentClasses.values()) {
+                infos.put(getClassName(entry), ClassFileInfo.read(readAllBytes(currentZip, entry)));
+            }
+            propagateToSubtypes(abiChangedClasses, infos);
+
+            var groups = new TreeMap<String, List<String>>();
+            for (var entry : currentClasses.values()) {
+                groups.computeIfAbsent(getGroup(entry.getName(), currentClasses), ignored -> new ArrayList<>()).add(entry.getName());
+            }
+            for (var group : groups.entrySet()) {
+                if (changedGroups.contains(group.getKey())) {
+                    continue;
+                }
+                if (packagesWithAddedOrRemovedClasses.contains(getPackage(group.getKey()))
+                        || previousSourcesZip.getEntry(group.getKey() + ".java") == null) {
+                    changedGroups.add(group.getKey());
+                    continue;
+                }
+                for (var classEntry : group.getValue()) {
+                    var info = infos.get(classEntry.substring(0, classEntry.length() - ".class".length()));
+                    if (info.references().stream().anyMatch(abiChangedClasses::contains)) {
+                        changedGroups.add(group.getKey());
+                        break;
+                    }
+                }
+            }
+
+            if (changedGroups.size() > groups.size() * MAX_CHANGED_FRACTION) {
+                return null;
+            }
+
+            var changedClasses = new TreeSet<String>();
+            var contextClasses = new TreeSet<String>();
+            var reusedSources = new TreeSet<String>();
+            for (var group : groups.entrySet()) {
+                if (changedGroups.contains(group.getKey())) {
+                    changedClasses.addAll(group.getValue());
+                } else {
+                    contextClasses.addAll(group.getValue());
+                    reusedSources.add(group.getKey() + ".java");
+                }
+            }
+            return new Plan(changedClasses, contextClasses, reusedSources);
+        }
+    }
+
+    /**
+     * Writes the given entries of a jar into a new jar.
+     */
+    static void writeJar(Path inputJar, Collection<String> entryNames, Path outputJar, IntermediateFormat format) throws IOException {
+        try (var zip = new ZipFile(inputJar.toFile());
+             var out = IntermediateZipWriter.open(outputJar, format)) {
+            for (var entryName : entryNames) {
+                out.copyEntry(zip, zip.getEntry(entryName));
+            }
+        }
+    }
+
+    /**
+     * Combines the sources of the changed classes, the reused sources and the resources of the current jar.
+     * Entries are written sorted by name.
+     */
+    static void merge(@Nullable Path changedSources, Path previousSources, Set<String> reusedSources, Path currentJar, Path output, IntermediateFormat format) throws IOException {
+        var sourceZips = new ArrayList<ZipFile>();
+        try {
+            var previousSourcesZip = new ZipFile(previousSources.toFile());
+            sourceZips.add(previousSourcesZip);
+            var currentZip = new ZipFile(currentJar.toFile());
+            sourceZips.add(currentZip);
+
+            var mergedEntries = new TreeMap<String, ZipEntry>();
+            var entryZips = new HashMap<String, ZipFile>();
+            if (changedSources != null) {
+                var changedZip = new ZipFile(changedSources.toFile());
+                sourceZips.add(changedZip);
+                for (var entry : list(changedZip)) {
+                    addEntry(mergedEntries, entryZips, changedZip, entry);
+                }
+            }
+            for (var reusedSource : reusedSources) {
+                addEntry(mergedEntries, entryZips, previousSourcesZip, previousSourcesZip.getEntry(reusedSource));
+            }
+            for (var entry : list(currentZip)) {
+                if (!entry.getName().endsWith(".class")) {
+                    addEntry(mergedEntries, entryZips, currentZip, entry);
+                }
+            }
+
+            try (var out = IntermediateZipWriter.open(output, format)) {
+                for (var entry : mergedEntries.values()) {
+                    out.copyEntry(entryZips.get(entry.getName()), entry);
+                }
+            }
+        } finally {
+            for (var zip : sourceZips) {
+                zip.close();
+            }
+        }
+    }
+
+    private static void addEntry(Map<String, ZipEntry> mergedEntries, Map<String, ZipFile> entryZips, ZipFile zip, ZipEntry entry) throws IOException {
+        if (mergedEntries.putIfAbsent(entry.getName(), entry) != null) {
+            throw new IOException("Entry " + entry.getName() + " was produced more than once.");
+        }
+        entryZips.put(entry.getName(), zip);
+    }
+
+    /**
+     * Adds every class that has a class with a changed ABI among its transitive supertypes, since inherited members
+     * are visible through it as well.
+     */
+    private static void propagateToSubtypes(Set<String> abiChangedClasses, Map<String, ClassFileInfo> infos) {
+        var subtypes = new HashMap<String, List<String>>();
+        for (var info : infos.values()) {
+            var supertypes = new ArrayList<>(info.interfaces());
+            if (info.superName() != null) {
+                supertypes.add(info.superName());
+            }
+            for (var supertype : supertypes) {
+                subtypes.computeIfAbsent(supertype, ignored -> new ArrayList<>()).add(info.name());
+            }
+        }
+        var queue = new ArrayDeque<>(abiChangedClasses);
+        while (!queue.isEmpty()) {
+            for (var subtype : subtypes.getOrDefault(queue.poll(), List.of())) {
+                if (abiChangedClasses.add(subtype)) {
+                    queue.add(subtype);
+                }
+            }
+        }
+    }
+
+    private static Map<String, ZipEntry> readClasses(ZipFile zip) {
+        var classes = new HashMap<String, ZipEntry>();
+        for (var entry : list(zip)) {
+            if (entry.getName().endsWith(".class")) {
+                classes.put(entry.getName(), entry);
+            }
+        }
+        return classes;
+    }
+
+    private static List<ZipEntry> list(ZipFile zip) {
+        var result = new ArrayList<ZipEntry>();
+        var entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            var entry = entries.nextElement();
+            if (!entry.isDirectory()) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The top-level class a class entry belongs to, which names the source file it is decompiled into.
+     * Nested classes without an enclosing class in the jar are decompiled into their own file.
+     */
+    private static String getGroup(String classEntry, Map<String, ZipEntry> classes) {
+        var className = classEntry.substring(0, classEntry.length() - ".class".length());
+        var lastSlash = className.lastIndexOf('/');
+        var dollar = className.indexOf('$', lastSlash + 1);
+        if (dollar > lastSlash + 1) {
+            var outerName = className.substring(0, dollar);
+            if (classes.containsKey(outerName + ".class")) {
+                return outerName;
+            }
+        }
+        return className;
+    }
+
+    private static String getClassName(ZipEntry entry) {
+        return entry.getName().substring(0, entry.getName().length() - ".class".length());
+    }
+
+    private static String getPackage(String name) {
+        var lastSlash = name.lastIndexOf('/');
+        return lastSlash == -1 ? "" : name.substring(0, lastSlash);
+    }
+
+    private static boolean hasSameContent(ZipFile zipA, ZipEntry a, ZipFile zipB, ZipEntry b) throws IOException {
+        if (a.getSize() != b.getSize() || a.getCrc() != b.getCrc()) {
+            return false;
+        }
+        return Arrays.equals(readAllBytes(zipA, a), readAllBytes(zipB, b));
+    }
+
+    private static byte[] readAllBytes(ZipFile zip, ZipEntry entry) throws IOException {
+        try (var in = zip.getInputStream(entry)) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package net.neoforged.neoform.tasks;
+
+import net.neoforged.neoform.dsl.IntermediateFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes intermediate zips in one of the {@linkplain IntermediateFormat formats}. Entries are always copied from
+ * another zip, keeping their name and modification time.
+ */
+abstract class IntermediateZipWriter implements Closeable {
+    /**
+     * Opens a writer for the given format. {@link IntermediateFormat#DIRECTORY} is written as a stored zip,
+     * since the caller asked for a zip.
+     */
+    static IntermediateZipWriter open(Path output, IntermediateFormat format) throws IOException {
+        return switch (format) {
+            case DEFLATED -> new StreamWriter(output, false);
+            case STORED, DIRECTORY -> new StreamWriter(output, true);
+            case PARALLEL_DEFLATED -> new ParallelDeflateWriter(output);
+        };
+    }
+
+    abstract void copyEntry(ZipFile zip, ZipEntry entry) throws IOException;
+
+    abstract void setComment(String comment);
+
+    /**
+     * Writes the entries one after another through a {@link ZipOutputStream}.
+     */
+    private static final class StreamWriter extends IntermediateZipWriter {
+        private final ZipOutputStream out;
+        private final boolean stored;
+
+        StreamWriter(Path output, boolean stored) throws IOException {
+            this.out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(output)));
+            this.stored = stored;
+        }
+
+        @Override
+        void copyEntry(ZipFile zip, ZipEntry entry) throws IOException {
+            var newEntry = new ZipEntry(entry.getName());
+            newEntry.setTime(entry.getTime());
+            if (stored) {
+                // Stored entries need their size and checksum up-front, which the source zip already knows
+                newEntry.setMethod(ZipEntry.STORED);
+                newEntry.setSize(entry.getSize());
+                newEntry.setCompressedSize(entry.getSize());
+                newEntry.setCrc(entry.getCrc());
+            }
+            out.putNextEntry(newEntry);
+            try (var in = zip.getInputStream(entry)) {
+                in.transferTo(out);
+            }
+            out.closeEntry();
+        }
+
+        @Override
+        void setComment(String comment) {
+            out.setComment(comment);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Compresses the entries on a thread pool, and writes the compressed entries in the order they were added,
+     * followed by the central directory. At most a few entries per thread are held in memory at any time.
+     * Zip64 records are written if the zip has too many entries or grows beyond 4 GB.
+     */
+    private static final class ParallelDeflateWriter extends IntermediateZipWriter {
+        private static final int MAX_PENDING_ENTRIES_PER_THREAD = 4;
+        private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+        private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+        private final PositionOutputStream out;
+        private final ExecutorService executor;
+        private final int maxPendingEntries;
+        private final ArrayDeque<Future<CompressedEntry>> pendingEntries = new ArrayDeque<>();
+        private final List<CentralDirectoryEntry> centralDirectory = new ArrayList<>();
+        private byte[] comment = new byte[0];
+
+        private record CompressedEntry(byte[] name, int dosTime, long crc, long size, byte[] data) {
+        }
+
+        /**
+         * Everything the central directory needs to know about an entry, without its data.
+         */
+        private record CentralDirectoryEntry(byte[] name, int dosTime, long crc, long size, long compressedSize, long offset) {
+        }
+
+        ParallelDeflateWriter(Path output) throws IOException {
+            var threads = Runtime.getRuntime().availableProcessors();
+            this.out = new PositionOutputStream(new BufferedOutputStream(Files.newOutputStream(output)));
+            this.executor = Executors.newFixedThreadPool(threads);
+            this.maxPendingEntries = threads * MAX_PENDING_ENTRIES_PER_THREAD;
+        }
+
+        @Override
+        void copyEntry(ZipFile zip, ZipEntry entry) throws IOException {
+            pendingEntries.add(executor.submit(() -> compress(zip, entry)));
+            while (pendingEntries.size() > maxPendingEntries) {
+                writeEntry(Futures.await(pendingEntries.poll()));
+            }
+        }
+
+        @Override
+        void setComment(String comment) {
+            this.comment = comment.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                while (!pendingEntries.isEmpty()) {
+                    writeEntry(Futures.await(pendingEntries.poll()));
+                }
+                writeCentralDirectory();
+            } finally {
+                executor.shutdownNow();
+                out.close();
+            }
+        }
+
+        private static CompressedEntry compress(ZipFile zip, ZipEntry entry) throws IOException {
+            byte[] content;
+            try (var in = zip.getInputStream(entry)) {
+                content = in.readAllBytes();
+            }
+            var crc = new CRC32();
+            crc.update(content);
+
+            var deflater = DEFLATER.get();
+            try {
+                deflater.setInput(content);
+                deflater.finish();
+                // Deflate output only exceeds the input by a few bytes per block for incompressible input
+                var buffer = new byte[content.length + content.length / 1000 + 64];
+                var length = 0;
+                while (!deflater.finished()) {
+                    if (length == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    }
+                    length += deflater.deflate(buffer, length, buffer.length - length);
+                }
+                return new CompressedEntry(entry.getName().getBytes(StandardCharsets.UTF_8), toDosTime(entry.getTime()),
+                        crc.getValue(), content.length, Arrays.copyOf(buffer, length));
+            } finally {
+                deflater.reset();
+            }
+        }
+
+        private void writeEntry(CompressedEntry entry) throws IOException {
+            centralDirectory.add(new CentralDirectoryEntry(entry.name, entry.dosTime, entry.crc, entry.size, entry.data.length, out.position));
+            out.writeInt(0x04034b50);
+            out.writeShort(20);
+            out.writeShort(0x0800); // UTF-8 names
+            out.writeShort(ZipEntry.DEFLATED);
+            out.writeInt(entry.dosTime);
+            out.writeInt(entry.crc);
+            out.writeInt(entry.data.length);
+            out.writeInt(entry.size);
+            out.writeShort(entry.name.length);
+            out.writeShort(0);
+            out.write(entry.name);
+            out.write(entry.data);
+        }
+
+        private void writeCentralDirectory() throws IOException {
+            var centralDirectoryOffset = out.position;
+            for (var entry : centralDirectory) {
+                var zip64 = entry.offset >= ZIP64_MAGIC;
+                out.writeInt(0x02014b50);
+                out.writeShort(zip64 ? 45 : 20);
+                out.writeShort(zip64 ? 45 : 20);
+                out.writeShort(0x0800);
+                out.writeShort(ZipEntry.DEFLATED);
+                out.writeInt(entry.dosTime);
+                out.writeInt(entry.crc);
+                out.writeInt(entry.compressedSize);
+                out.writeInt(entry.size);
+                out.writeShort(entry.name.length);
+                out.writeShort(zip64 ? 12 : 0);
+                out.writeShort(0); // comment length
+                out.writeShort(0); // disk
+                out.writeShort(0); // internal attributes
+                out.writeInt(0); // external attributes
+                out.writeInt(zip64 ? ZIP64_MAGIC : entry.offset);
+                out.write(entry.name);
+                if (zip64) {
+                    out.writeShort(0x0001);
+                    out.writeShort(8);
+                    out.writeLong(entry.offset);
+                }
+            }
+            var centralDirectorySize = out.position - centralDirectoryOffset;
+            var entryCount = centralDirectory.size();
+
+            if (entryCount >= 0xFFFF || centralDirectoryOffset >= ZIP64_MAGIC || centralDirectorySize >= ZIP64_MAGIC) {
+                var zip64EndOffset = out.position;
+                out.writeInt(0x06064b50);
+                out.writeLong(44);
+                out.writeShort(45);
+                out.writeShort(45);
+                out.writeInt(0);
+                out.writeInt(0);
+                out.writeLong(entryCount);
+                out.writeLong(entryCount);
+                out.writeLong(centralDirectorySize);
+                out.writeLong(centralDirectoryOffset);
+
+                out.writeInt(0x07064b50);
+                out.writeInt(0);
+                out.writeLong(zip64EndOffset);
+                out.writeInt(1);
+            }
+
+            out.writeInt(0x06054b50);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(Math.min(entryCount, 0xFFFF));
+            out.writeShort(Math.min(entryCount, 0xFFFF));
+            out.writeInt(Math.min(centralDirectorySize, ZIP64_MAGIC));
+            out.writeInt(Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+            out.writeShort(comment.length);
+            out.write(comment);
+        }
+
+        /**
+         * Converts a modification time to the MS-DOS format used by zips, in the local time zone like {@link ZipOutputStream}.
+         */
+        private static int toDosTime(long time) {
+            var dateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+            if (dateTime.getYear() < 1980) {
+                return (1 << 21) | (1 << 16);
+            }
+            return (dateTime.getYear() - 1980) << 25
+                    | dateTime.getMonthValue() << 21
+                    | dateTime.getDayOfMonth() << 16
+                    | dateTime.getHour() << 11
+                    | dateTime.getMinute() << 5
+                    | dateTime.getSecond() >> 1;
+        }
+    }
+
+    /**
+     * Writes little-endian values and keeps track of the number of bytes written.
+     */
+    private static final class PositionOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long position;
+
+        PositionOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeShort(int value) throws IOException {
+            write(value & 0xFF);
+            write((value >>> 8) & 0xFF);
+        }
+
+        void writeInt(long value) throws IOException {
+            writeShort((int) (value & 0xFFFF));
+            writeShort((int) ((value >>> 16) & 0xFFFF));
+        }
+
+        void writeLong(long value) throws IOException {
+            writeInt(value & 0xFFFFFFFFL);
+            writeInt(value >>> 32);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            position += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package net.neoforged.neoform.tasks;
+
+import net.neoforged.neoform.dsl.IntermediateFormat;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Splits the classes of a jar into shards of whole packages, so they can be decompiled concurrently,
+ * and merges the decompiled shards back into a single zip.
+ */
+final class JarShards {
+    private JarShards() {
+    }
+
+    /**
+     * Splits the classes of the input jar into at most the given number of shards of roughly equal size.
+     * Resources are not included in any shard.
+     *
+     * @return the shard jars that were written, which may be fewer than requested
+     */
+    static List<Path> split(Path inputJar, Path outputDir, int shardCount, IntermediateFormat format) throws IOException {
+        try (var zip = new ZipFile(inputJar.toFile())) {
+            var packages = new TreeMap<String, List<ZipEntry>>();
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                if (entry.isDirectory() || !entry.getName().endsWith(".class")) {
+                    continue;
+                }
+                var lastSlash = entry.getName().lastIndexOf('/');
+                var packageName = lastSlash == -1 ? "" : entry.getName().substring(0, lastSlash);
+                packages.computeIfAbsent(packageName, ignored -> new ArrayList<>()).add(entry);
+            }
+
+            // Greedily assign the largest remaining package to the smallest shard
+            var packageSizes = new HashMap<String, Long>();
+            for (var entry : packages.entrySet()) {
+                packageSizes.put(entry.getKey(), entry.getValue().stream().mapToLong(ZipEntry::getSize).sum());
+            }
+            var packagesBySize = new ArrayList<>(packages.keySet());
+            packagesBySize.sort(Comparator.<String, Long>comparing(packageSizes::get).reversed().thenComparing(Comparator.naturalOrder()));
+
+            var shardCountUsed = Math.max(1, Math.min(shardCount, packagesBySize.size()));
+            var shardPackages = new ArrayList<List<String>>();
+            var shardSizes = new long[shardCountUsed];
+            for (var i = 0; i < shardCountUsed; i++) {
+                shardPackages.add(new ArrayList<>());
+            }
+            for (var packageName : packagesBySize) {
+                var smallest = 0;
+                for (var i = 1; i < shardCountUsed; i++) {
+                    if (shardSizes[i] < shardSizes[smallest]) {
+                        smallest = i;
+                    }
+                }
+                shardPackages.get(smallest).add(packageName);
+                shardSizes[smallest] += packageSizes.get(packageName);
+            }
+
+            var shardJars = new ArrayList<Path>(shardCountUsed);
+            for (var i = 0; i < shardCountUsed; i++) {
+                var shardJar = outputDir.resolve("shard-" + i + ".jar");
+                var shardEntries = new ArrayList<ZipEntry>();
+                for (var packageName : shardPackages.get(i)) {
+                    shardEntries.addAll(packages.get(packageName));
+                }
+                shardEntries.sort(Comparator.comparing(ZipEntry::getName));
+                try (var out = IntermediateZipWriter.open(shardJar, format)) {
+                    for (var entry : shardEntries) {
+                        out.copyEntry(zip, entry);
+                    }
+                }
+                shardJars.add(shardJar);
+            }
+            return shardJars;
+        }
+    }
+
+    /**
+     * Merges the decompiled shards and the resources of the original input jar into a single zip.
+     * Entries are written sorted by name, so the result does not depend on how the classes were sharded.
+     *
+     * @param comment the comment of the merged zip, if any
+     */
+    static void merge(List<Path> decompiledShards, Path inputJar, Path output, IntermediateFormat format, @Nullable String comment) throws IOException {
+        var zips = new ArrayList<ZipFile>();
+        try {
+            var mergedEntries = new TreeMap<String, ZipFile>();
+            for (var decompiledShard : decompiledShards) {
+                var zip = new ZipFile(decompiledShard.toFile());
+                zips.add(zip);
+                addEntries(zip, mergedEntries, false);
+            }
+            var inputZip = new ZipFile(inputJar.toFile());
+            zips.add(inputZip);
+            addEntries(inputZip, mergedEntries, true);
+
+            try (var out = IntermediateZipWriter.open(output, format)) {
+                if (comment != null) {
+                    out.setComment(comment);
+                }
+                for (var mergedEntry : mergedEntries.entrySet()) {
+                    var zip = mergedEntry.getValue();
+                    out.copyEntry(zip, zip.getEntry(mergedEntry.getKey()));
+                }
+            }
+        } finally {
+            for (var zip : zips) {
+                zip.close();
+            }
+        }
+    }
+
+    private static void addEntries(ZipFile zip, Map<String, ZipFile> mergedEntries, boolean resourcesOnly) throws IOException {
+        var entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            var entry = entries.nextElement();
+            if (entry.isDirectory() || resourcesOnly && entry.getName().endsWith(".class")) {
+                continue;
+            }
+            if (mergedEntries.putIfAbsent(entry.getName(), zip) != null) {
+                throw new IOException("Entry " + entry.getName() + " was produced by more than one shard.");
+            }
+        }
+    }
+}
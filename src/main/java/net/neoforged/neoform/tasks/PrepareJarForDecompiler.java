@@ -1,18 +1,25 @@
 package net.neoforged.neoform.tasks;
 
 import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.InputFile;
 import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Map;
 
+@CacheableTask
 public abstract class PrepareJarForDecompiler extends ToolAction {
     @InputFile
+    @PathSensitive(PathSensitivity.RELATIVE)
     public abstract RegularFileProperty getClient();
 
     @InputFile
+    @PathSensitive(PathSensitivity.RELATIVE)
     public abstract RegularFileProperty getServer();
 
     @OutputFile
@@ -24,6 +31,9 @@ public abstract class PrepareJarForDecompiler extends ToolAction {
         var serverJar = getServer().getAsFile().get();
         var joinedJar = getOutput().getAsFile().get();
 
+        // The output may be a hard link into the decompiled output store, which must not be written to
+        Files.deleteIfExists(joinedJar.toPath());
+
         exec(Map.of(
                 "downloadClientOutput", clientJar.getAbsolutePath(),
                 "downloadServerOutput", serverJar.getAbsolutePath(),
@@ -0,0 +1,56 @@
+package net.neoforged.neoform.tasks;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.UntrackedTask;
+
+import java.io.IOException;
+
+/**
+ * Publishes the pre-processed jar and the decompiled sources to the user-level decompiled output store, under the key
+ * that {@link RestoreDecompiledOutput} computed for the current build. This is not done by {@link Decompile} itself,
+ * so that it has no effects besides its outputs, and the sources are also published when they come from the build cache.
+ */
+@UntrackedTask(because = "The store is not tracked by Gradle, and publishing an entry that exists is cheap")
+public abstract class PublishDecompiledOutput extends DefaultTask {
+    /**
+     * The output of {@link PrepareJarForDecompiler}.
+     */
+    @InputFile
+    public abstract RegularFileProperty getJoinedJar();
+
+    @InputFile
+    public abstract RegularFileProperty getSourcesZip();
+
+    /**
+     * The state file written by {@link RestoreDecompiledOutput}.
+     */
+    @InputFile
+    public abstract RegularFileProperty getStateFile();
+
+    @Internal
+    public abstract DirectoryProperty getStoreDirectory();
+
+    @TaskAction
+    public void publish() throws IOException {
+        var stateFile = getStateFile().getAsFile().get();
+        var key = RestoreDecompiledOutput.getKey(stateFile);
+        if (key == null || RestoreDecompiledOutput.wasRestored(stateFile)) {
+            return;
+        }
+
+        // The store key does not cover partial decompilations, or the shards used after running out of memory
+        var sourcesZip = getSourcesZip().getAsFile().get().toPath();
+        if (!Decompile.isPublishable(sourcesZip)) {
+            getLogger().info("Not publishing {}, since it was not decompiled with the configured settings", sourcesZip);
+            return;
+        }
+
+        var store = new DecompiledOutputStore(getStoreDirectory().getAsFile().get().toPath());
+        store.publish(key, getJoinedJar().getAsFile().get().toPath(), sourcesZip);
+    }
+}
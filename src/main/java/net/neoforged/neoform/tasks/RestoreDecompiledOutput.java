@@ -0,0 +1,178 @@
+package net.neoforged.neoform.tasks;
+
+import net.neoforged.neoform.dsl.ToolSettings;
+import net.neoforged.neoform.manifests.MinecraftVersionManifest;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.InvalidUserCodeException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.UntrackedTask;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Looks up the pre-processed jar and the decompiled sources in the user-level decompiled output store.
+ * The store is keyed by the checksums of the client and server jar from the version manifest, the settings
+ * of both tools and the contents of the libraries passed to the decompiler, so a hit does not require downloading
+ * the Minecraft jars.
+ * <p>
+ * On a hit, the outputs are placed where {@link PrepareJarForDecompiler} and {@link Decompile} would write them,
+ * and the result is recorded in the state file, which is used to skip those tasks and the downloads.
+ */
+@UntrackedTask(because = "Checking the store is cheap and its content is not tracked by Gradle")
+public abstract class RestoreDecompiledOutput extends DefaultTask {
+    private static final String KEY_VERSION = "1";
+
+    @InputFile
+    public abstract RegularFileProperty getVersionManifest();
+
+    @Internal
+    public abstract Property<ToolSettings> getPreProcessJar();
+
+    @Internal
+    public abstract Property<ToolSettings> getDecompiler();
+
+    /**
+     * Further options of the {@link Decompile} task that may affect its output, such as the number of shards.
+     */
+    @Internal
+    public abstract ListProperty<String> getDecompileOptions();
+
+    @Classpath
+    public abstract ConfigurableFileCollection getLibraries();
+
+    @Internal
+    public abstract DirectoryProperty getStoreDirectory();
+
+    @Internal
+    public abstract RegularFileProperty getJoinedJar();
+
+    @Internal
+    public abstract RegularFileProperty getSourcesZip();
+
+    @OutputFile
+    public abstract RegularFileProperty getStateFile();
+
+    @TaskAction
+    public void restore() throws IOException {
+        var manifest = MinecraftVersionManifest.from(getVersionManifest().getAsFile().get().toPath());
+        var key = computeKey(manifest);
+
+        var store = new DecompiledOutputStore(getStoreDirectory().getAsFile().get().toPath());
+        var restored = store.restore(
+                key,
+                getJoinedJar().getAsFile().get().toPath(),
+                getSourcesZip().getAsFile().get().toPath()
+        );
+        if (restored) {
+            getLogger().lifecycle("Restored decompiled output {} from {}", key, getStoreDirectory().getAsFile().get());
+        }
+
+        var state = new Properties();
+        state.setProperty("key", key);
+        state.setProperty("restored", String.valueOf(restored));
+        try (var writer = Files.newBufferedWriter(getStateFile().getAsFile().get().toPath(), StandardCharsets.UTF_8)) {
+            state.store(writer, null);
+        }
+    }
+
+    /**
+     * Whether the last run of this task found the outputs in the store.
+     */
+    public static boolean wasRestored(File stateFile) {
+        var state = readState(stateFile);
+        return state != null && Boolean.parseBoolean(state.getProperty("restored"));
+    }
+
+    /**
+     * The key under which the outputs of the current build belong in the store, or null if it is unknown.
+     */
+    @Nullable
+    static String getKey(File stateFile) {
+        var state = readState(stateFile);
+        return state != null ? state.getProperty("key") : null;
+    }
+
+    @Nullable
+    private static Properties readState(File stateFile) {
+        if (!stateFile.isFile()) {
+            return null;
+        }
+        var state = new Properties();
+        try (Reader reader = Files.newBufferedReader(stateFile.toPath(), StandardCharsets.UTF_8)) {
+            state.load(reader);
+        } catch (IOException ignored) {
+            return null;
+        }
+        return state;
+    }
+
+    private String computeKey(MinecraftVersionManifest manifest) throws IOException {
+        var keyLines = new StringBuilder();
+        keyLines.append("version=").append(KEY_VERSION).append('\n');
+        for (var artifactName : List.of("client", "server")) {
+            var artifact = manifest.downloads().get(artifactName);
+            if (artifact == null || artifact.checksum() == null) {
+                throw new InvalidUserCodeException(artifactName + " is not listed with a checksum in the downloads section of the version manifest.");
+            }
+            keyLines.append(artifactName).append('=').append(artifact.checksum()).append('\n');
+        }
+        appendToolSettings(keyLines, "preProcessJar", getPreProcessJar().get());
+        appendToolSettings(keyLines, "decompiler", getDecompiler().get());
+        for (var option : getDecompileOptions().get()) {
+            keyLines.append("decompileOption=").append(option).append('\n');
+        }
+        for (var library : getLibraries()) {
+            keyLines.append("library=").append(library.getName()).append(' ').append(hashFile(library)).append('\n');
+        }
+
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(keyLines.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hashFile(File file) throws IOException {
+        try (var in = Files.newInputStream(file.toPath())) {
+            var digest = MessageDigest.getInstance("SHA-256");
+            var buffer = new byte[8192];
+            for (var read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void appendToolSettings(StringBuilder keyLines, String name, ToolSettings settings) {
+        keyLines.append(name).append(".version=").append(settings.getVersion().get()).append('\n');
+        keyLines.append(name).append(".javaVersion=").append(settings.getJavaVersion().getOrNull()).append('\n');
+        for (var arg : settings.getArgs().get()) {
+            keyLines.append(name).append(".arg=").append(arg).append('\n');
+        }
+        for (var arg : settings.getJvmArgs().get()) {
+            keyLines.append(name).append(".jvmArg=").append(arg).append('\n');
+        }
+    }
+}
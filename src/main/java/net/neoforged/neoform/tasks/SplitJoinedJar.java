@@ -0,0 +1,65 @@
+package net.neoforged.neoform.tasks;
+
+import net.neoforged.neoform.dsl.IntermediateFormat;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.zip.ZipFile;
+
+/**
+ * Splits the pre-processed jar into a jar with only the classes, which is all the decompiler needs,
+ * and a zip with everything else, which goes straight into the workspace resources.
+ */
+@CacheableTask
+public abstract class SplitJoinedJar extends DefaultTask {
+    @InputFile
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract RegularFileProperty getInput();
+
+    @OutputFile
+    public abstract RegularFileProperty getClassesJar();
+
+    @OutputFile
+    public abstract RegularFileProperty getResourcesZip();
+
+    /**
+     * How the jar and the zip are written. Not an input, since it does not change their content.
+     */
+    @Internal
+    public abstract Property<IntermediateFormat> getIntermediateFormat();
+
+    @Inject
+    public SplitJoinedJar() {
+        getIntermediateFormat().convention(IntermediateFormat.DEFLATED);
+    }
+
+    @TaskAction
+    public void split() throws IOException {
+        var classesJar = getClassesJar().getAsFile().get().toPath();
+        var resourcesZip = getResourcesZip().getAsFile().get().toPath();
+
+        try (var zip = new ZipFile(getInput().getAsFile().get());
+             var classesOut = IntermediateZipWriter.open(classesJar, getIntermediateFormat().get());
+             var resourcesOut = IntermediateZipWriter.open(resourcesZip, getIntermediateFormat().get())) {
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                var out = entry.getName().endsWith(".class") ? classesOut : resourcesOut;
+                out.copyEntry(zip, entry);
+            }
+        }
+    }
+}
@@ -1,45 +1,65 @@
 package net.neoforged.neoform.tasks;
 
+import net.neoforged.neoform.dsl.NeoFormExtension;
 import net.neoforged.neoform.dsl.ToolSettings;
 import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
 import org.gradle.api.Project;
 import org.gradle.api.attributes.Bundling;
 import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.provider.ListProperty;
 import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.Classpath;
 import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.Internal;
-import org.gradle.api.tasks.Optional;
-import org.gradle.api.tasks.OutputFile;
 import org.gradle.api.tasks.TaskProvider;
 import org.gradle.jvm.toolchain.JavaLanguageVersion;
 import org.gradle.jvm.toolchain.JavaLauncher;
 import org.gradle.jvm.toolchain.JavaToolchainService;
 import org.gradle.process.ExecOperations;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
+import org.jetbrains.annotations.Nullable;
 
 import javax.inject.Inject;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public abstract class ToolAction extends DefaultTask {
+    private static final String RESOURCE_BUDGET_SERVICE = "neoFormToolResourceBudget";
+
+    @Nullable
+    private volatile Long maxHeapSizeOverride;
+
     @Inject
     protected abstract ExecOperations getExecOps();
 
     @Inject
     protected abstract JavaToolchainService getJavaToolchainService();
 
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+
     @Internal
     public abstract Property<JavaLauncher> getLauncher();
 
@@ -58,12 +78,47 @@ public abstract class ToolAction extends DefaultTask {
     @Input
     public abstract Property<Integer> getJavaVersion();
 
-    @OutputFile
-    @Optional
+    /**
+     * Where the output of the tool is written to. This is not a task output, since the log contains
+     * absolute paths, which would prevent the task outputs from being reused from the build cache.
+     */
+    @Internal
     public abstract RegularFileProperty getLogFile();
 
+    /**
+     * Run the tool in a worker process that is kept alive and reused by later invocations with the same
+     * Java version and JVM arguments, instead of starting a new JVM every time. The worker keeps the tool loaded
+     * in a class loader of its own, which avoids paying for JVM startup and JIT warm-up on every invocation.
+     */
+    @Internal
+    public abstract Property<Boolean> getReuseProcess();
+
+    /**
+     * Whether tool JVMs started as new processes exit as soon as they run out of memory, instead of leaving it to the
+     * tool how to continue. Only tasks that retry the tool after it ran out of memory should enable this.
+     */
+    @Internal
+    public abstract Property<Boolean> getExitOnOutOfMemory();
+
+    /**
+     * If set, tool JVMs started as new processes record a dynamic class data sharing archive into this directory
+     * on their first run, and start with it on later runs with the same classpath, Java installation and JVM arguments.
+     * This reduces the time spent loading classes at startup.
+     */
+    @Internal
+    public abstract DirectoryProperty getClassDataSharingCache();
+
+    /**
+     * Limits the memory and processors used by the tool processes of all tasks in the build.
+     */
+    @Internal
+    public abstract Property<ToolResourceBudget> getResourceBudget();
+
     @Inject
     public ToolAction() {
+        getReuseProcess().convention(false);
+        getExitOnOutOfMemory().convention(false);
+
         var javaLangVersion = getJavaVersion().map(JavaLanguageVersion::of);
         getLauncher().convention(
                 getJavaToolchainService().launcherFor(spec -> spec.getLanguageVersion().set(javaLangVersion))
@@ -71,48 +126,380 @@ public abstract class ToolAction extends DefaultTask {
     }
 
     protected final void exec(Map<String, String> placeholders) throws IOException {
-        File logFile = getLogFile().getAsFile().getOrNull();
-        if (logFile == null) {
-            logFile = new File(getTemporaryDir(), "tool.log");
+        exec(placeholders, getEffectiveLogFile());
+    }
+
+    /**
+     * Runs the tool with its output going to a specific log file. This may be called concurrently
+     * from multiple threads, unless the tool runs in a reusable worker process.
+     */
+    protected final void exec(Map<String, String> placeholders, File logFile) throws IOException {
+        try (var ignored = acquireResources(1)) {
+            detectOutOfMemory(List.of(logFile), () -> {
+                if (getReuseProcess().get()) {
+                    var workQueue = submitToWorker(placeholders, logFile);
+                    workQueue.await();
+                    reportWorkerMetrics(logFile);
+                } else {
+                    execInNewProcess(placeholders, logFile);
+                }
+            });
         }
+    }
 
-        try (var logOutput = new BufferedOutputStream(new FileOutputStream(logFile))) {
-            getExecOps().javaexec(spec -> {
-                spec.setStandardOutput(logOutput);
-                spec.setErrorOutput(logOutput);
-
-                spec.setExecutable(getLauncher().get().getExecutablePath().getAsFile().getAbsolutePath());
-                spec.getMainClass().set(getMainClass());
-                spec.classpath(getToolClasspath());
-                spec.args(replacePlaceholders(getArgs().get(), placeholders));
-                spec.jvmArgs(replacePlaceholders(getJvmArgs().get(), placeholders));
-
-                // Dump the arguments
-                var writer = new OutputStreamWriter(logOutput, StandardCharsets.UTF_8);
-                try {
-                    writer.append("Running using:\n");
-                    writer.append(" Main Class: ").append(getMainClass().get()).append('\n');
-                    writer.append(" Classpath:\n");
-                    for (var file : getToolClasspath()) {
-                        writer.append("  - ").append(file.getAbsolutePath()).append('\n');
+    /**
+     * A single invocation of the tool, see {@link #execAll}.
+     */
+    protected record ToolInvocation(Map<String, String> placeholders, File logFile) {
+    }
+
+    /**
+     * Called once an invocation of the tool completed successfully, see {@link #execAll(List, int, InvocationListener)}.
+     */
+    @FunctionalInterface
+    protected interface InvocationListener {
+        void completed(ToolInvocation invocation) throws IOException;
+    }
+
+    /**
+     * Runs several invocations of the tool, with at most the given number of them running at the same time.
+     */
+    protected final void execAll(List<ToolInvocation> invocations, int concurrency) throws IOException {
+        execAll(invocations, concurrency, invocation -> {
+        });
+    }
+
+    /**
+     * Runs several invocations of the tool like {@link #execAll(List, int)}, and notifies the listener as soon as
+     * each of them completed, while the others may still be running. The listener may be called concurrently.
+     * If the listener fails, the failure is propagated like a failure of the invocation.
+     */
+    protected final void execAll(List<ToolInvocation> invocations, int concurrency, InvocationListener listener) throws IOException {
+        if (getReuseProcess().get()) {
+            // Gradle picks idle worker processes for the submitted work, and starts new ones as needed
+            for (var i = 0; i < invocations.size(); i += concurrency) {
+                var batch = invocations.subList(i, Math.min(invocations.size(), i + concurrency));
+                try (var ignored = acquireResources(batch.size())) {
+                    detectOutOfMemory(batch.stream().map(ToolInvocation::logFile).toList(), () -> {
+                        var workQueues = new ArrayList<WorkQueue>();
+                        for (var invocation : batch) {
+                            workQueues.add(submitToWorker(invocation.placeholders(), invocation.logFile()));
+                        }
+                        // Wait for all of them even if one failed, so none is still writing its output afterward
+                        GradleException failure = null;
+                        for (var workQueue : workQueues) {
+                            try {
+                                workQueue.await();
+                            } catch (GradleException e) {
+                                if (failure == null) {
+                                    failure = e;
+                                } else {
+                                    failure.addSuppressed(e);
+                                }
+                            }
+                        }
+                        if (failure != null) {
+                            throw failure;
+                        }
+                    });
+                    for (var invocation : batch) {
+                        reportWorkerMetrics(invocation.logFile());
                     }
-                    writer.append(" JVM Args:\n");
-                    for (var arg : spec.getAllJvmArgs()) {
-                        writer.append("  - ").append(arg).append('\n');
+                    for (var invocation : batch) {
+                        listener.completed(invocation);
                     }
-                    writer.append(" Args:\n");
-                    for (var arg : spec.getArgs()) {
-                        writer.append("  - ").append(arg).append('\n');
+                }
+            }
+            return;
+        }
+
+        // Resolve the tool classpath on the task thread, before the invocations start
+        getToolClasspath().getFiles();
+
+        var executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            var results = new ArrayList<Future<?>>(invocations.size());
+            for (var invocation : invocations) {
+                results.add(executor.submit(() -> {
+                    try (var ignored = acquireResources(1)) {
+                        detectOutOfMemory(List.of(invocation.logFile()), () -> execInNewProcess(invocation.placeholders(), invocation.logFile()));
+                    }
+                    listener.completed(invocation);
+                    return null;
+                }));
+            }
+            try {
+                for (var result : results) {
+                    Futures.await(result);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Invocations that did not start yet are dropped, while running ones are left to finish,
+                // so none of them is still writing its output or notifying the listener afterward
+                for (var result : results) {
+                    result.cancel(false);
+                }
+                throw e;
+            }
+        } finally {
+            executor.shutdown();
+            awaitTermination(executor);
+        }
+    }
+
+    private void awaitTermination(ExecutorService executor) throws IOException {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for running invocations of " + getMainClass().get());
+        }
+    }
+
+    /**
+     * Leases the expected heap size and one processor per invocation from the shared budget, if there is one.
+     *
+     * @return null if there is no budget
+     */
+    private ToolResourceBudget.@Nullable Lease acquireResources(int invocations) throws IOException {
+        if (!getResourceBudget().isPresent()) {
+            return null;
+        }
+        var budget = getResourceBudget().get();
+        var memory = estimateMaxHeapSize() * invocations;
+        if (!budget.isAvailable(memory, invocations)) {
+            getLogger().lifecycle("Waiting for memory and processors to become available to run {}", getMainClass().get());
+        }
+        try {
+            return budget.acquire(memory, invocations);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory and processors to run " + getMainClass().get());
+        }
+    }
+
+    /**
+     * Runs the tool and turns failures into a {@link ToolOutOfMemoryException} if any of the logs show that
+     * the tool ran out of memory.
+     */
+    private void detectOutOfMemory(List<File> logFiles, ToolRun run) throws IOException {
+        try {
+            run.run();
+        } catch (GradleException e) {
+            for (var logFile : logFiles) {
+                if (ToolOutOfMemoryException.isOutOfMemory(logFile)) {
+                    throw new ToolOutOfMemoryException(getMainClass().get(), estimateMaxHeapSize(), logFile, e);
+                }
+            }
+            throw e;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ToolRun {
+        void run() throws IOException;
+    }
+
+    private void execInNewProcess(Map<String, String> placeholders, File logFile) throws IOException {
+        Files.createDirectories(logFile.toPath().getParent());
+
+        var launcher = getLauncher().get();
+        var jvmArgs = getEffectiveJvmArgs(placeholders);
+        // Fail fast instead of thrashing or continuing with partial results when the heap is exhausted
+        if (getExitOnOutOfMemory().get()) {
+            jvmArgs.add("-XX:+ExitOnOutOfMemoryError");
+        }
+        ClassDataSharing classDataSharing = null;
+        // The JVM refuses to start when recording an archive with non-empty directories on the classpath
+        if (getClassDataSharingCache().isPresent()
+                && launcher.getMetadata().getLanguageVersion().canCompileOrRun(ClassDataSharing.MIN_JAVA_VERSION)
+                && getToolClasspath().getFiles().stream().allMatch(File::isFile)) {
+            classDataSharing = ClassDataSharing.forTool(getClassDataSharingCache().getAsFile().get().toPath(), launcher, getToolClasspath(), jvmArgs);
+            jvmArgs.addAll(classDataSharing.getJvmArgs());
+        }
+
+        // Mark the process, so the sampler can find it, and let it log its GC pauses
+        var marker = "-Dneoform.toolInvocation=" + UUID.randomUUID();
+        jvmArgs.add(marker);
+        var metricsFile = ToolMetrics.getMetricsFile(logFile.toPath());
+        var gcLog = metricsFile.resolveSibling(metricsFile.getFileName() + ".gc.log");
+        Files.deleteIfExists(gcLog);
+        if (launcher.getMetadata().getLanguageVersion().canCompileOrRun(9)) {
+            // Quoted, since -Xlog would otherwise split Windows paths at the colon after the drive letter
+            jvmArgs.add("-Xlog:gc:file=\"" + gcLog.toAbsolutePath() + "\"");
+        }
+
+        try (var logOutput = new BufferedOutputStream(new FileOutputStream(logFile))) {
+            var writer = new OutputStreamWriter(logOutput, StandardCharsets.UTF_8);
+            var start = System.nanoTime();
+            var success = false;
+            var sampler = new ToolMetrics.Sampler(marker);
+            try {
+                getExecOps().javaexec(spec -> {
+                    spec.setStandardOutput(logOutput);
+                    spec.setErrorOutput(logOutput);
+
+                    spec.setExecutable(launcher.getExecutablePath().getAsFile().getAbsolutePath());
+                    spec.getMainClass().set(getMainClass());
+                    spec.classpath(getToolClasspath());
+                    spec.args(replacePlaceholders(getArgs().get(), placeholders));
+                    spec.jvmArgs(jvmArgs);
+
+                    // Dump the arguments
+                    try {
+                        writer.append(describeInvocation(spec.getAllJvmArgs(), spec.getArgs()));
+                        writer.flush();
+                        logOutput.flush();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
                     }
+                });
+                success = true;
+            } finally {
+                sampler.close();
+                var wallTimeMillis = (System.nanoTime() - start) / 1_000_000;
+                if (classDataSharing != null) {
+                    classDataSharing.finish(success, writer);
                     writer.flush();
-                    logOutput.flush();
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e);
                 }
+
+                var gcPauses = ToolMetrics.readGcPauses(gcLog);
+                Files.deleteIfExists(gcLog);
+                var metrics = new ToolMetrics(
+                        getMainClass().get(),
+                        success,
+                        wallTimeMillis,
+                        sampler.getCpuTimeMillis(),
+                        sampler.getPeakRssBytes(),
+                        gcPauses != null ? gcPauses[0] : null,
+                        gcPauses != null ? (int) gcPauses[1] : null,
+                        ToolMetrics.getFileSizes(placeholders)
+                );
+                metrics.write(metricsFile);
+                if (success) {
+                    getLogger().lifecycle("{}", metrics.toSummary());
+                }
+            }
+        }
+    }
+
+    /**
+     * Submits the invocation to a worker process for the Java launcher and JVM arguments, which Gradle keeps alive
+     * to be reused by later invocations, even across builds.
+     */
+    private WorkQueue submitToWorker(Map<String, String> placeholders, File logFile) throws IOException {
+        Files.createDirectories(logFile.toPath().getParent());
+
+        var args = replacePlaceholders(getArgs().get(), placeholders);
+        var jvmArgs = getEffectiveJvmArgs(placeholders);
+        // The worker only runs the plugin classes, and loads the tool itself, see ToolWorkAction
+        var workQueue = getWorkerExecutor().processIsolation(spec -> {
+            spec.forkOptions(forkOptions -> {
+                forkOptions.setExecutable(getLauncher().get().getExecutablePath().getAsFile().getAbsolutePath());
+                forkOptions.jvmArgs(jvmArgs);
             });
+        });
+        workQueue.submit(ToolWorkAction.class, parameters -> {
+            parameters.getMainClass().set(getMainClass());
+            parameters.getToolClasspath().from(getToolClasspath());
+            parameters.getArgs().set(args);
+            parameters.getLogFile().set(logFile);
+            parameters.getLogHeader().set(describeInvocation(jvmArgs, args));
+            parameters.getMetricsFile().set(ToolMetrics.getMetricsFile(logFile.toPath()).toFile());
+            parameters.getPlaceholders().set(placeholders);
+        });
+        return workQueue;
+    }
+
+    private void reportWorkerMetrics(File logFile) throws IOException {
+        var metrics = ToolMetrics.read(ToolMetrics.getMetricsFile(logFile.toPath()));
+        if (metrics != null) {
+            getLogger().lifecycle("{}", metrics.toSummary());
         }
     }
 
+    private String describeInvocation(List<String> jvmArgs, List<String> args) {
+        var description = new StringBuilder();
+        description.append("Running using:\n");
+        description.append(" Main Class: ").append(getMainClass().get()).append('\n');
+        description.append(" Classpath:\n");
+        for (var file : getToolClasspath()) {
+            description.append("  - ").append(file.getAbsolutePath()).append('\n');
+        }
+        description.append(" JVM Args:\n");
+        for (var arg : jvmArgs) {
+            description.append("  - ").append(arg).append('\n');
+        }
+        description.append(" Args:\n");
+        for (var arg : args) {
+            description.append("  - ").append(arg).append('\n');
+        }
+        return description.toString();
+    }
+
+    @Internal
+    protected final File getEffectiveLogFile() {
+        File logFile = getLogFile().getAsFile().getOrNull();
+        if (logFile == null) {
+            logFile = new File(getTemporaryDir(), "tool.log");
+        }
+        return logFile;
+    }
+
+    /**
+     * Estimates the maximum heap the tool will use, based on its -Xmx JVM argument.
+     * Without one, the JVM defaults to a quarter of the physical memory.
+     */
+    protected final long estimateMaxHeapSize() {
+        var maxHeapSizeOverride = this.maxHeapSizeOverride;
+        if (maxHeapSizeOverride != null) {
+            return maxHeapSizeOverride;
+        }
+        long maxHeapSize = getPhysicalMemorySize() / 4;
+        for (var jvmArg : getJvmArgs().get()) {
+            if (jvmArg.startsWith("-Xmx")) {
+                maxHeapSize = parseMemorySize(jvmArg.substring("-Xmx".length()));
+            }
+        }
+        return maxHeapSize;
+    }
+
+    /**
+     * Overrides the max heap size given by the -Xmx JVM argument for the following invocations of the tool.
+     */
+    protected final void setMaxHeapSize(long maxHeapSize) {
+        maxHeapSizeOverride = maxHeapSize;
+    }
+
+    private List<String> getEffectiveJvmArgs(Map<String, String> placeholders) {
+        var jvmArgs = replacePlaceholders(getJvmArgs().get(), placeholders);
+        var maxHeapSizeOverride = this.maxHeapSizeOverride;
+        if (maxHeapSizeOverride != null) {
+            jvmArgs.removeIf(jvmArg -> jvmArg.startsWith("-Xmx"));
+            jvmArgs.add("-Xmx" + (maxHeapSizeOverride / (1024 * 1024)) + "m");
+        }
+        return jvmArgs;
+    }
+
+    static long getPhysicalMemorySize() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getTotalMemorySize();
+    }
+
+    /**
+     * Parses memory sizes in the format accepted by -Xmx, i.e. 512m or 4G.
+     */
+    static long parseMemorySize(String size) {
+        var unit = Character.toLowerCase(size.charAt(size.length() - 1));
+        var multiplier = switch (unit) {
+            case 'k' -> 1024L;
+            case 'm' -> 1024L * 1024;
+            case 'g' -> 1024L * 1024 * 1024;
+            case 't' -> 1024L * 1024 * 1024 * 1024;
+            default -> 1L;
+        };
+        var digits = multiplier == 1L ? size : size.substring(0, size.length() - 1);
+        return Long.parseLong(digits) * multiplier;
+    }
+
     private List<String> replacePlaceholders(List<String> strings, Map<String, String> placeholders) {
         return new ArrayList<>(strings.stream().map(string -> replacePlaceholders(string, placeholders)).toList());
     }
@@ -145,11 +532,21 @@ public abstract class ToolAction extends DefaultTask {
             );
         });
 
+        var resourceBudget = project.getGradle().getSharedServices().registerIfAbsent(RESOURCE_BUDGET_SERVICE, ToolResourceBudget.class, spec -> {
+            var neoForm = NeoFormExtension.fromProject(project);
+            spec.getParameters().getMaxMemory().set(neoForm.getToolMemoryBudget().map(ToolAction::parseMemorySize)
+                    .orElse(getPhysicalMemorySize() / 4 * 3));
+            spec.getParameters().getMaxCpus().set(neoForm.getToolCpuBudget());
+        });
+
         taskProvider.configure(task -> {
+            task.getResourceBudget().set(resourceBudget);
+            task.usesService(resourceBudget);
             task.getToolClasspath().from(classpath);
             task.getArgs().set(settings.getArgs());
             task.getJvmArgs().set(settings.getJvmArgs());
             task.getJavaVersion().set(settings.getJavaVersion());
+            task.getReuseProcess().set(settings.getReuseProcess());
         });
     }
 }
@@ -0,0 +1,230 @@
+package net.neoforged.neoform.tasks;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Resources used by a single tool invocation, written as a JSON file next to the tool log.
+ * Values that could not be measured, such as the peak resident memory on platforms other than Linux, are null.
+ * For tools running in a reused worker process, the peak resident memory is that of the worker process so far,
+ * and the CPU and GC times are the difference over the invocation.
+ *
+ * @param mainClass       main class of the tool
+ * @param success         whether the tool completed successfully
+ * @param wallTimeMillis  wall time of the invocation
+ * @param cpuTimeMillis   CPU time of the tool process, sampled while it runs
+ * @param peakRssBytes    peak resident set size of the tool process, read from {@code /proc} on Linux
+ * @param gcPauseMillis   total time the tool process spent in GC pauses, read from its GC log
+ * @param gcPauses        number of GC pauses
+ * @param fileSizes       sizes of the files passed to the tool after it ran, by placeholder name
+ */
+record ToolMetrics(
+        String mainClass,
+        boolean success,
+        long wallTimeMillis,
+        @Nullable Long cpuTimeMillis,
+        @Nullable Long peakRssBytes,
+        @Nullable Long gcPauseMillis,
+        @Nullable Integer gcPauses,
+        Map<String, Long> fileSizes
+) {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final Pattern GC_PAUSE = Pattern.compile("Pause.*\\s(\\d+(?:\\.\\d+)?)ms\\s*$");
+    private static final Pattern VM_HWM = Pattern.compile("^VmHWM:\\s+(\\d+)\\s+kB", Pattern.MULTILINE);
+
+    static Path getMetricsFile(Path logFile) {
+        var logFileName = logFile.getFileName().toString();
+        if (logFileName.endsWith(".log")) {
+            logFileName = logFileName.substring(0, logFileName.length() - ".log".length());
+        }
+        return logFile.resolveSibling(logFileName + ".metrics.json");
+    }
+
+    /**
+     * Collects the sizes of all files that placeholders point to.
+     */
+    static Map<String, Long> getFileSizes(Map<String, String> placeholders) {
+        var fileSizes = new TreeMap<String, Long>();
+        for (var placeholder : placeholders.entrySet()) {
+            var file = new File(placeholder.getValue());
+            if (file.isFile()) {
+                fileSizes.put(placeholder.getKey(), file.length());
+            }
+        }
+        return fileSizes;
+    }
+
+    @Nullable
+    static ToolMetrics read(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (var reader = Files.newBufferedReader(file)) {
+            return GSON.fromJson(reader, ToolMetrics.class);
+        } catch (JsonParseException ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the peak resident set size of the current process on Linux.
+     */
+    @Nullable
+    static Long readOwnPeakRssBytes() {
+        return readPeakRssBytes("self");
+    }
+
+    @Nullable
+    private static Long readPeakRssBytes(String pid) {
+        try {
+            var status = Files.readString(Path.of("/proc", pid, "status"));
+            var matcher = VM_HWM.matcher(status);
+            if (matcher.find()) {
+                return Long.parseLong(matcher.group(1)) * 1024;
+            }
+        } catch (IOException | RuntimeException ignored) {
+            // Not on Linux, or the process has already exited
+        }
+        return null;
+    }
+
+    void write(Path file) throws IOException {
+        try (var writer = Files.newBufferedWriter(file)) {
+            GSON.toJson(this, writer);
+        }
+    }
+
+    /**
+     * A single line summary for the build output.
+     */
+    String toSummary() {
+        var summary = new StringBuilder(mainClass).append(": ").append(formatMillis(wallTimeMillis)).append(" wall");
+        if (cpuTimeMillis != null) {
+            summary.append(", ").append(formatMillis(cpuTimeMillis)).append(" CPU");
+        }
+        if (peakRssBytes != null) {
+            summary.append(", ").append(String.format(Locale.ROOT, "%.1f GB", peakRssBytes / (1024.0 * 1024 * 1024))).append(" peak RSS");
+        }
+        if (gcPauseMillis != null) {
+            summary.append(", ").append(formatMillis(gcPauseMillis)).append(" GC (").append(gcPauses).append(" pauses)");
+        }
+        return summary.toString();
+    }
+
+    private static String formatMillis(long millis) {
+        return String.format(Locale.ROOT, "%.1f s", millis / 1000.0);
+    }
+
+    /**
+     * Sums up the pause times in a log written with {@code -Xlog:gc}.
+     *
+     * @return the total pause time and the number of pauses, or null if the log does not exist
+     */
+    static long @Nullable [] readGcPauses(Path gcLog) throws IOException {
+        if (!Files.isRegularFile(gcLog)) {
+            return null;
+        }
+        var totalMillis = 0.0;
+        var pauses = 0L;
+        try (var lines = Files.lines(gcLog)) {
+            for (var line : (Iterable<String>) lines::iterator) {
+                var matcher = GC_PAUSE.matcher(line);
+                if (matcher.find()) {
+                    totalMillis += Double.parseDouble(matcher.group(1));
+                    pauses++;
+                }
+            }
+        }
+        return new long[]{Math.round(totalMillis), pauses};
+    }
+
+    /**
+     * Samples the CPU time and peak resident memory of the tool process, which is found among the descendants
+     * of the current process by a marker in its command line.
+     */
+    static final class Sampler implements AutoCloseable {
+        private static final long SAMPLE_INTERVAL_MILLIS = 100;
+
+        private final String marker;
+        private final Thread thread;
+        @Nullable
+        private volatile ProcessHandle process;
+        @Nullable
+        private volatile Duration cpuTime;
+        @Nullable
+        private volatile Long peakRssBytes;
+        private volatile boolean stopped;
+
+        Sampler(String marker) {
+            this.marker = marker;
+            this.thread = new Thread(this::run, "tool-metrics-sampler");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        private void run() {
+            while (!stopped) {
+                sample();
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+            }
+        }
+
+        private void sample() {
+            var process = this.process;
+            if (process == null) {
+                process = ProcessHandle.current().descendants()
+                        .filter(handle -> handle.info().arguments().map(args -> String.join(" ", args).contains(marker)).orElse(false)
+                                || handle.info().commandLine().map(commandLine -> commandLine.contains(marker)).orElse(false))
+                        .findFirst()
+                        .orElse(null);
+                if (process == null) {
+                    return;
+                }
+                this.process = process;
+            }
+            process.info().totalCpuDuration().ifPresent(duration -> cpuTime = duration);
+            var peakRssBytes = readPeakRssBytes(String.valueOf(process.pid()));
+            if (peakRssBytes != null) {
+                this.peakRssBytes = peakRssBytes;
+            }
+        }
+
+        @Nullable
+        Long getCpuTimeMillis() {
+            var cpuTime = this.cpuTime;
+            return cpuTime != null ? cpuTime.toMillis() : null;
+        }
+
+        @Nullable
+        Long getPeakRssBytes() {
+            return peakRssBytes;
+        }
+
+        @Override
+        public void close() {
+            stopped = true;
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package net.neoforged.neoform.tasks;
+
+import org.gradle.api.GradleException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Thrown when a tool fails because it ran out of memory, which is detected from its log.
+ */
+final class ToolOutOfMemoryException extends GradleException {
+    private final long maxHeapSize;
+
+    ToolOutOfMemoryException(String mainClass, long maxHeapSize, File logFile, Throwable cause) {
+        super("Tool " + mainClass + " ran out of memory with a max heap size of " + (maxHeapSize / (1024 * 1024))
+              + " MB. See " + logFile + " for details.", cause);
+        this.maxHeapSize = maxHeapSize;
+    }
+
+    long getMaxHeapSize() {
+        return maxHeapSize;
+    }
+
+    /**
+     * Checks the tool log for an {@link OutOfMemoryError}, which also covers exceeding the GC overhead limit.
+     */
+    static boolean isOutOfMemory(File logFile) {
+        try (var lines = Files.lines(logFile.toPath(), StandardCharsets.UTF_8)) {
+            return lines.anyMatch(line -> line.contains("java.lang.OutOfMemoryError") || line.contains("GC overhead limit exceeded"));
+        } catch (IOException | RuntimeException ignored) {
+            // Unreadable logs, including ones that are not valid UTF-8, are not evidence of running out of memory
+            return false;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package net.neoforged.neoform.tasks;
+
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.util.ArrayDeque;
+
+/**
+ * Shared by all {@link ToolAction} tasks of a build to limit how much memory and how many processors the tool
+ * processes use at the same time. Every tool invocation leases its expected heap size and one processor, and waits
+ * until the lease fits into the remaining budget. Leases are granted in the order they were requested.
+ * <p>
+ * A single invocation that expects more than the whole budget is still run, but only once nothing else is running.
+ */
+public abstract class ToolResourceBudget implements BuildService<ToolResourceBudget.Parameters> {
+    public interface Parameters extends BuildServiceParameters {
+        /**
+         * Total heap size in bytes that tool processes may use at the same time.
+         */
+        Property<Long> getMaxMemory();
+
+        /**
+         * Total number of processors that tool processes may use at the same time.
+         */
+        Property<Integer> getMaxCpus();
+    }
+
+    private final ArrayDeque<Object> waiting = new ArrayDeque<>();
+    private long usedMemory;
+    private int usedCpus;
+
+    /**
+     * Waits until the requested resources are available and reserves them until the lease is closed.
+     */
+    public Lease acquire(long memory, int cpus) throws InterruptedException {
+        var maxMemory = getParameters().getMaxMemory().get();
+        var maxCpus = getParameters().getMaxCpus().get();
+        var leasedMemory = Math.min(memory, maxMemory);
+        var leasedCpus = Math.min(cpus, maxCpus);
+
+        var ticket = new Object();
+        synchronized (this) {
+            waiting.add(ticket);
+            try {
+                while (waiting.peek() != ticket
+                        || usedMemory > 0 && usedMemory + leasedMemory > maxMemory
+                        || usedCpus > 0 && usedCpus + leasedCpus > maxCpus) {
+                    wait();
+                }
+            } finally {
+                waiting.remove(ticket);
+                notifyAll();
+            }
+            usedMemory += leasedMemory;
+            usedCpus += leasedCpus;
+        }
+        return new Lease(leasedMemory, leasedCpus);
+    }
+
+    /**
+     * Whether a lease for the requested resources could be granted right now without waiting.
+     */
+    public synchronized boolean isAvailable(long memory, int cpus) {
+        return waiting.isEmpty()
+                && (usedMemory == 0 || usedMemory + Math.min(memory, getParameters().getMaxMemory().get()) <= getParameters().getMaxMemory().get())
+                && (usedCpus == 0 || usedCpus + Math.min(cpus, getParameters().getMaxCpus().get()) <= getParameters().getMaxCpus().get());
+    }
+
+    private synchronized void release(long memory, int cpus) {
+        usedMemory -= memory;
+        usedCpus -= cpus;
+        notifyAll();
+    }
+
+    public final class Lease implements AutoCloseable {
+        private final long memory;
+        private final int cpus;
+        private boolean released;
+
+        private Lease(long memory, int cpus) {
+            this.memory = memory;
+            this.cpus = cpus;
+        }
+
+        @Override
+        public void close() {
+            synchronized (ToolResourceBudget.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            release(memory, cpus);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package net.neoforged.neoform.tasks;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs the main method of a tool inside a reusable worker process, with the output of the tool redirected
+ * to a log file for the duration of the invocation.
+ * <p>
+ * The worker process only has the classes of the plugin on its classpath. The tool is loaded by a class loader of
+ * its own, which does not see the plugin or its dependencies, so their versions can't clash. That class loader is
+ * kept for later invocations with the same classpath, so they find the classes of the tool loaded and compiled.
+ * <p>
+ * Since the worker process outlives the invocation, this only works for tools that do not call
+ * {@link System#exit(int)} and do not keep state between invocations in static fields.
+ */
+public abstract class ToolWorkAction implements WorkAction<ToolWorkAction.Parameters> {
+    private static final Map<List<File>, ClassLoader> TOOL_CLASS_LOADERS = new ConcurrentHashMap<>();
+
+    public interface Parameters extends WorkParameters {
+        Property<String> getMainClass();
+
+        ConfigurableFileCollection getToolClasspath();
+
+        ListProperty<String> getArgs();
+
+        RegularFileProperty getLogFile();
+
+        /**
+         * The header written to the log before running the tool, describing the invocation.
+         */
+        Property<String> getLogHeader();
+
+        RegularFileProperty getMetricsFile();
+
+        MapProperty<String, String> getPlaceholders();
+    }
+
+    @Override
+    public void execute() {
+        var parameters = getParameters();
+        var originalOut = System.out;
+        var originalErr = System.err;
+        var start = System.nanoTime();
+        var cpuTimeBefore = getProcessCpuTimeNanos();
+        var gcTimeBefore = getGcTimeMillis();
+        var gcCountBefore = getGcCount();
+        var success = false;
+        try (var logOutput = new PrintStream(new BufferedOutputStream(new FileOutputStream(parameters.getLogFile().getAsFile().get())), true, StandardCharsets.UTF_8)) {
+            logOutput.print(parameters.getLogHeader().get());
+            logOutput.flush();
+
+            var toolClassLoader = getToolClassLoader(List.copyOf(parameters.getToolClasspath().getFiles()));
+            var originalContextClassLoader = Thread.currentThread().getContextClassLoader();
+            System.setOut(logOutput);
+            System.setErr(logOutput);
+            Thread.currentThread().setContextClassLoader(toolClassLoader);
+            try {
+                var mainClass = Class.forName(parameters.getMainClass().get(), true, toolClassLoader);
+                var mainMethod = mainClass.getMethod("main", String[].class);
+                mainMethod.invoke(null, (Object) parameters.getArgs().get().toArray(String[]::new));
+                success = true;
+            } catch (InvocationTargetException e) {
+                e.getCause().printStackTrace(logOutput);
+                throw new GradleException("Tool " + parameters.getMainClass().get() + " failed. See " + parameters.getLogFile().getAsFile().get() + " for details.", e.getCause());
+            } catch (ReflectiveOperationException e) {
+                throw new GradleException("Failed to start tool " + parameters.getMainClass().get(), e);
+            } finally {
+                Thread.currentThread().setContextClassLoader(originalContextClassLoader);
+                System.setOut(originalOut);
+                System.setErr(originalErr);
+                new ToolMetrics(
+                        parameters.getMainClass().get(),
+                        success,
+                        (System.nanoTime() - start) / 1_000_000,
+                        (getProcessCpuTimeNanos() - cpuTimeBefore) / 1_000_000,
+                        ToolMetrics.readOwnPeakRssBytes(),
+                        getGcTimeMillis() - gcTimeBefore,
+                        (int) (getGcCount() - gcCountBefore),
+                        ToolMetrics.getFileSizes(parameters.getPlaceholders().get())
+                ).write(parameters.getMetricsFile().getAsFile().get().toPath());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Loads the tool without a parent besides the platform class loader, so it neither sees the classes of Gradle,
+     * nor those of the plugin.
+     */
+    private static ClassLoader getToolClassLoader(List<File> toolClasspath) {
+        return TOOL_CLASS_LOADERS.computeIfAbsent(toolClasspath, files -> {
+            var urls = new URL[files.size()];
+            for (var i = 0; i < urls.length; i++) {
+                try {
+                    urls[i] = files.get(i).toURI().toURL();
+                } catch (MalformedURLException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+            return new URLClassLoader(urls, ClassLoader.getPlatformClassLoader());
+        });
+    }
+
+    private static long getProcessCpuTimeNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    private static long getGcTimeMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(bean -> Math.max(0, bean.getCollectionTime())).sum();
+    }
+
+    private static long getGcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(bean -> Math.max(0, bean.getCollectionCount())).sum();
+    }
+}
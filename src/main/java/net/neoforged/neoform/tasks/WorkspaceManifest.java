@@ -0,0 +1,113 @@
+package net.neoforged.neoform.tasks;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Records which inputs every file in the workspace was created from, so that later runs of
+ * {@link CreatePatchWorkspace} only have to rewrite files whose inputs actually changed.
+ * Keys are paths relative to the workspace root.
+ */
+record WorkspaceManifest(boolean updateMode, Map<String, Entry> files) {
+    static final String PATH = ".neoform/workspace.json";
+
+    /**
+     * @param sourceCrc   CRC-32 of the entry in the sources zip.
+     * @param sourceSize  Uncompressed size of the entry in the sources zip.
+     * @param patchHash   SHA-1 of the patch applied to the entry, or null if it was copied as-is.
+     * @param size        Size of the file in the workspace after it was written.
+     * @param lastModified Modification time of the file in the workspace after it was written.
+     * @param contentCrc  CRC-32 of the file in the workspace after it was written.
+     */
+    record Entry(long sourceCrc, long sourceSize, @Nullable String patchHash, long size, long lastModified, long contentCrc) {
+        boolean hasSameInputs(Entry other) {
+            return sourceCrc == other.sourceCrc
+                    && sourceSize == other.sourceSize
+                    && Objects.equals(patchHash, other.patchHash);
+        }
+
+        /**
+         * Checks that the file on disk is still the one we wrote, i.e. it has not been edited or deleted since.
+         */
+        boolean isIntact(Path file) {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (IOException ignored) {
+                return false;
+            }
+            return attributes.isRegularFile()
+                    && attributes.size() == size
+                    && attributes.lastModifiedTime().toMillis() == lastModified;
+        }
+
+        /**
+         * Checks that the file on disk still has the content we wrote. Unlike {@link #isIntact}, this also accepts
+         * files that were only touched, by comparing their checksum if the modification time changed.
+         */
+        boolean hasSameContent(Path file) throws IOException {
+            if (isIntact(file)) {
+                return true;
+            }
+            if (!FileUtil.hasSize(file, size)) {
+                return false;
+            }
+            var crc = new CRC32();
+            crc.update(Files.readAllBytes(file));
+            return crc.getValue() == contentCrc;
+        }
+
+        Entry withOutput(Path file, long contentCrc) throws IOException {
+            var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return new Entry(sourceCrc, sourceSize, patchHash, attributes.size(), attributes.lastModifiedTime().toMillis(), contentCrc);
+        }
+    }
+
+    /**
+     * Reads the manifest from the given workspace, returning null if it is missing or unreadable.
+     */
+    @Nullable
+    static WorkspaceManifest read(Path workspace) {
+        var path = workspace.resolve(PATH);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (var reader = Files.newBufferedReader(path)) {
+            var manifest = new Gson().fromJson(reader, WorkspaceManifest.class);
+            if (manifest == null || manifest.files() == null) {
+                return null;
+            }
+            return manifest;
+        } catch (IOException | JsonParseException ignored) {
+            return null;
+        }
+    }
+
+    void write(Path workspace) throws IOException {
+        var path = workspace.resolve(PATH);
+        Files.createDirectories(path.getParent());
+        try (var writer = Files.newBufferedWriter(path)) {
+            new Gson().toJson(this, writer);
+        }
+    }
+
+    static String hash(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package net.neoforged.neoform.tasks;
+
+import io.codechicken.diffpatch.cli.PatchOperation;
+import io.codechicken.diffpatch.util.Input;
+import io.codechicken.diffpatch.util.LogLevel;
+import io.codechicken.diffpatch.util.Output;
+import io.codechicken.diffpatch.util.PatchMode;
+import net.neoforged.neoform.tasks.CreatePatchWorkspace.Materialization;
+import org.gradle.api.logging.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts and patches the files of one or more zips into a workspace on a pool of threads.
+ * The files of a zip are scheduled as soon as it is {@linkplain #add added}, so zips that become available one
+ * after another, such as the shards of a decompilation, are written while the next ones are still being produced.
+ * If the same file is contained in several zips, the zip added first wins.
+ */
+final class WorkspaceWriter implements Closeable {
+    /**
+     * The minimum similarity of a hunk to the lines it replaces in update mode.
+     */
+    private static final float UPDATE_MODE_MIN_FUZZ = 0.5f;
+
+    record Patch(Path patchPath, long size) {
+    }
+
+    /**
+     * A zip the workspace is created from, along with the decompiled files cache for it.
+     */
+    record Archive(ZipFile zip, boolean resourcesOnly, @Nullable DecompiledFileCache cache) {
+    }
+
+    record PatchJob(Archive archive, ZipEntry entry, Path destination, Patch patch, String key, WorkspaceManifest.@Nullable Entry previous) {
+    }
+
+    record CopyJob(Archive archive, ZipEntry entry, Path destination, String key, WorkspaceManifest.Entry inputs) {
+    }
+
+    record PatchResult(boolean success, List<String> log, WorkspaceManifest.@Nullable Entry manifestEntry) {
+    }
+
+    /**
+     * @param manifestFiles     the manifest entries of all files that are now in the workspace, excluding failed patches
+     * @param targets           the workspace paths of all files in the added zips
+     * @param failedPatches     the patches that failed to apply, in zip order
+     * @param successfulPatches number of patches that applied
+     * @param writtenFiles      number of files that were written
+     * @param unchangedFiles    number of files that already had the expected content
+     */
+    record Result(Map<String, WorkspaceManifest.Entry> manifestFiles, Set<String> targets, List<PatchJob> failedPatches,
+                  int successfulPatches, int writtenFiles, int unchangedFiles) {
+        /**
+         * Adds the manifest entries of this run to those of the last run, for when the added zips did not contain
+         * all files of the workspace.
+         */
+        Map<String, WorkspaceManifest.Entry> mergeManifestFiles(Map<String, WorkspaceManifest.Entry> previousFiles) {
+            var merged = new TreeMap<>(previousFiles);
+            for (var job : failedPatches) {
+                merged.remove(job.key);
+            }
+            merged.putAll(manifestFiles);
+            return merged;
+        }
+    }
+
+    private final Path workspace;
+    private final Path sourcesDir;
+    private final Path resourcesDir;
+    private final Map<String, Patch> patches;
+    private final boolean updateMode;
+    private final Map<String, WorkspaceManifest.Entry> previousFiles;
+    private final boolean preserveUnchanged;
+    private final Materialization materialization;
+    @Nullable
+    private final Path decompiledFilesCache;
+    private final Consumer<String> patchLog;
+    private final ExecutorService executor;
+    /**
+     * Where hunks were located before, which is only used in update mode.
+     */
+    @Nullable
+    private final HunkHintCache hintCache;
+    @Nullable
+    private Path stagedWorkspace;
+    private Map<String, WorkspaceManifest.Entry> stagedFiles = Map.of();
+
+    private final List<Archive> archives = new ArrayList<>();
+    private final Set<Path> dirsCreated = new HashSet<>();
+    private final Set<String> targets = new HashSet<>();
+    private final Map<String, WorkspaceManifest.Entry> manifestFiles = new TreeMap<>();
+    private final List<PatchJob> patchJobs = new ArrayList<>();
+    private final Map<PatchJob, Future<PatchResult>> patchResults = new HashMap<>();
+    private final List<CopyJob> copyJobs = new ArrayList<>();
+    private final List<Future<WorkspaceManifest.Entry>> copyResults = new ArrayList<>();
+    private final AtomicInteger identicalFiles = new AtomicInteger();
+    private int unchangedFiles;
+    private boolean cancelled;
+
+    /**
+     * @param patches       patches by the zip entry they apply to. Patches are removed from the map once their
+     *                      target was found, leaving only the unused ones.
+     * @param previousFiles the manifest entries of the last run. Files whose inputs did not change and that were not
+     *                      modified since are left alone.
+     * @param patchLog      receives the log of every applied patch
+     */
+    WorkspaceWriter(Path workspace,
+                    Map<String, Patch> patches,
+                    boolean updateMode,
+                    Map<String, WorkspaceManifest.Entry> previousFiles,
+                    boolean preserveUnchanged,
+                    Materialization materialization,
+                    @Nullable Path decompiledFilesCache,
+                    int parallelism,
+                    Consumer<String> patchLog) throws IOException {
+        this.workspace = workspace;
+        this.sourcesDir = workspace.resolve("src/main/java");
+        this.resourcesDir = workspace.resolve("src/main/resources");
+        this.patches = patches;
+        this.updateMode = updateMode;
+        this.previousFiles = previousFiles;
+        this.preserveUnchanged = preserveUnchanged;
+        this.materialization = materialization;
+        this.decompiledFilesCache = decompiledFilesCache;
+        this.patchLog = patchLog;
+        Files.createDirectories(sourcesDir);
+        Files.createDirectories(resourcesDir);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        this.hintCache = updateMode ? HunkHintCache.open(workspace) : null;
+    }
+
+    /**
+     * Uses the patched files that {@link Decompile} staged in the given directory, if they were created from the same
+     * file and patch in the same mode, instead of applying their patches again. Must be called before adding zips.
+     */
+    synchronized void useStaged(Path stagedWorkspace) {
+        var manifest = WorkspaceManifest.read(stagedWorkspace);
+        if (manifest != null && manifest.updateMode() == updateMode) {
+            this.stagedWorkspace = stagedWorkspace;
+            this.stagedFiles = manifest.files();
+        }
+    }
+
+    /**
+     * Schedules all files of a zip that are not already part of the workspace. May be called concurrently.
+     *
+     * @param resourcesOnly whether all entries are written to the resources, including source files
+     */
+    synchronized void add(Path zipPath, boolean resourcesOnly) throws IOException {
+        add(zipPath, resourcesOnly, false);
+    }
+
+    /**
+     * Schedules only the files of a zip that have a patch, like {@link #add}.
+     */
+    synchronized void addPatched(Path zipPath) throws IOException {
+        add(zipPath, false, true);
+    }
+
+    private void add(Path zipPath, boolean resourcesOnly, boolean patchedOnly) throws IOException {
+        if (cancelled) {
+            return;
+        }
+        var archive = openArchive(zipPath, resourcesOnly);
+        archives.add(archive);
+
+        // Directories are created up-front so the workers only ever have to write files
+        var archivePatchJobs = new ArrayList<PatchJob>();
+        var archiveCopyJobs = new ArrayList<CopyJob>();
+        var entries = archive.zip.entries();
+        while (entries.hasMoreElements()) {
+            var entry = entries.nextElement();
+            if (entry.isDirectory()) {
+                continue;
+            }
+
+            Path destination;
+            if (entry.getName().endsWith(".java") && !archive.resourcesOnly) {
+                destination = sourcesDir;
+            } else {
+                destination = resourcesDir;
+            }
+            destination = destination.resolve(entry.getName());
+
+            var key = workspace.relativize(destination).toString().replace('\\', '/');
+            if (!targets.add(key)) {
+                continue;
+            }
+            var patch = patches.remove(entry.getName());
+            if (patch == null && patchedOnly) {
+                continue;
+            }
+            var previous = previousFiles.get(key);
+            var inputs = new WorkspaceManifest.Entry(entry.getCrc(), entry.getSize(), null, 0, 0, 0);
+            if (patch == null && previous != null && previous.hasSameInputs(inputs) && previous.isIntact(destination)) {
+                manifestFiles.put(key, previous);
+                unchangedFiles++;
+                continue;
+            }
+
+            if (dirsCreated.add(destination.getParent())) {
+                Files.createDirectories(destination.getParent());
+            }
+
+            if (patch != null) {
+                // Whether a patched file is unchanged is decided by the worker, once it has read the patch
+                archivePatchJobs.add(new PatchJob(archive, entry, destination, patch, key, previous));
+            } else {
+                archiveCopyJobs.add(new CopyJob(archive, entry, destination, key, inputs));
+            }
+        }
+
+        // Start with the largest patches, so that they don't end up as stragglers at the end.
+        // Results are still collected in zip order to keep the reporting stable.
+        var jobsBySize = new ArrayList<>(archivePatchJobs);
+        jobsBySize.sort(Comparator.comparingLong((PatchJob job) -> job.patch.size).reversed());
+        for (var job : jobsBySize) {
+            patchResults.put(job, executor.submit(() -> applyPatch(job)));
+        }
+        patchJobs.addAll(archivePatchJobs);
+
+        for (var job : archiveCopyJobs) {
+            copyResults.add(executor.submit(() -> {
+                if (!copyEntry(job)) {
+                    identicalFiles.incrementAndGet();
+                }
+                // Unpatched files have the content of their entry
+                return job.inputs.withOutput(job.destination, job.entry.getCrc());
+            }));
+        }
+        copyJobs.addAll(archiveCopyJobs);
+    }
+
+    /**
+     * Waits for all scheduled files to be written.
+     */
+    synchronized Result finish() throws IOException {
+        var failedPatches = new ArrayList<PatchJob>();
+        var successfulPatches = 0;
+        for (var job : patchJobs) {
+            var result = Futures.await(patchResults.get(job));
+            for (var line : result.log) {
+                patchLog.accept(line);
+            }
+
+            if (!result.success) {
+                failedPatches.add(job);
+            } else {
+                successfulPatches++;
+                manifestFiles.put(job.key, result.manifestEntry);
+            }
+        }
+
+        for (var i = 0; i < copyJobs.size(); i++) {
+            manifestFiles.put(copyJobs.get(i).key, Futures.await(copyResults.get(i)));
+        }
+
+        // Only once all patches were applied, since the hints of patches that were not seen are dropped
+        if (hintCache != null) {
+            hintCache.save();
+        }
+
+        return new Result(manifestFiles, targets, failedPatches, successfulPatches,
+                patchJobs.size() + copyJobs.size() - identicalFiles.get(), unchangedFiles + identicalFiles.get());
+    }
+
+    /**
+     * Stops writing files and waits for the files that are being written, then closes all added zips, so they can
+     * be deleted. Zips added afterward are ignored, and the writer can't be {@linkplain #finish() finished} anymore.
+     */
+    synchronized void cancel() throws IOException {
+        cancelled = true;
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for workspace files to be written");
+        }
+        closeArchives();
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stops writing files that were not written yet, and closes all added zips.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        executor.shutdownNow();
+        closeArchives();
+    }
+
+    private void closeArchives() throws IOException {
+        for (var archive : archives) {
+            if (archive.cache != null) {
+                archive.cache.save();
+            }
+            archive.zip.close();
+        }
+        archives.clear();
+    }
+
+    static Map<String, Patch> indexPatches(Path patchesBase, Logger logger) throws IOException {
+        var patches = new HashMap<String, Patch>();
+        Files.walkFileTree(patchesBase, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                var fileName = file.getFileName().toString();
+                if (!fileName.endsWith(".patch")) {
+                    logger.warn("Found non-patch file in patch folder: {}", file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                var relativePath = patchesBase.relativize(file).toString().replace('\\', '/');
+                var targetPath = relativePath.substring(0, relativePath.length() - ".patch".length());
+                patches.put(targetPath, new Patch(file, attrs.size()));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return patches;
+    }
+
+    private Archive openArchive(Path path, boolean resourcesOnly) throws IOException {
+        var zip = new ZipFile(path.toFile());
+        try {
+            DecompiledFileCache cache = null;
+            if (materialization != Materialization.EXTRACT) {
+                cache = DecompiledFileCache.open(decompiledFilesCache, zip);
+            }
+            return new Archive(zip, resourcesOnly, cache);
+        } catch (IOException | RuntimeException e) {
+            zip.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes an unpatched file to the workspace.
+     *
+     * @return false if the file already had the expected content and was left untouched
+     */
+    private boolean copyEntry(CopyJob job) throws IOException {
+        var destination = job.destination;
+        var zip = job.archive.zip;
+        var cache = job.archive.cache;
+
+        if (cache == null) {
+            if (preserveUnchanged && FileUtil.hasSize(destination, job.entry.getSize())) {
+                try (var input = zip.getInputStream(job.entry)) {
+                    if (FileUtil.contentEquals(destination, input)) {
+                        return false;
+                    }
+                }
+            }
+            try (var input = zip.getInputStream(job.entry)) {
+                Files.copy(input, destination, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        }
+
+        var object = cache.getObject(zip, job.entry);
+        if (Files.exists(destination) && Files.isSameFile(object, destination)) {
+            return false;
+        }
+        if (preserveUnchanged && FileUtil.hasSize(destination, job.entry.getSize())) {
+            try (var input = Files.newInputStream(object)) {
+                if (FileUtil.contentEquals(destination, input)) {
+                    return false;
+                }
+            }
+        }
+        if (materialization == Materialization.HARD_LINK) {
+            FileUtil.linkOrCopy(object, destination);
+        } else {
+            Files.copy(object, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    private PatchResult applyPatch(PatchJob job) throws IOException {
+        var entryName = job.entry.getName();
+        var patchContent = Files.readAllBytes(job.patch.patchPath);
+        var inputs = new WorkspaceManifest.Entry(job.entry.getCrc(), job.entry.getSize(), WorkspaceManifest.hash(patchContent), 0, 0, 0);
+        if (hintCache != null) {
+            hintCache.retain(inputs.patchHash());
+        }
+        if (job.previous != null && job.previous.hasSameInputs(inputs) && job.previous.isIntact(job.destination)) {
+            identicalFiles.incrementAndGet();
+            return new PatchResult(true, List.of(), job.previous);
+        }
+
+        // Decompile may already have applied the same patch to the same file while decompiling
+        var staged = stagedFiles.get(job.key);
+        if (stagedWorkspace != null && staged != null && staged.hasSameInputs(inputs) && staged.isIntact(stagedWorkspace.resolve(job.key))) {
+            writePatchedFile(job, Files.readAllBytes(stagedWorkspace.resolve(job.key)));
+            return new PatchResult(true, List.of(), inputs.withOutput(job.destination, staged.contentCrc()));
+        }
+
+        var log = new ArrayList<String>();
+        var patchedOutput = new ByteArrayOutputStream();
+        var rejectsOutput = new ByteArrayOutputStream();
+        int exit;
+        HunkLocator.Result located = null;
+        try (var input = job.archive.zip.getInputStream(job.entry)) {
+            var base = input.readAllBytes();
+            var patch = patchContent;
+            var fuzzy = false;
+            if (updateMode) {
+                // Move hunks to where they match before DiffPatch searches the file for them, and only fall back to
+                // fuzzy matching if some of them don't match exactly anywhere
+                located = HunkLocator.locate(base, patchContent, UPDATE_MODE_MIN_FUZZ, hintCache, inputs.patchHash());
+                patch = located.patch();
+                fuzzy = !located.allExact();
+            }
+
+            var builder = PatchOperation.builder()
+                    .logTo(log::add)
+                    .baseInput(Input.SingleInput.pipe(new ByteArrayInputStream(base), entryName))
+                    .patchesInput(Input.SingleInput.pipe(new ByteArrayInputStream(patch), job.patch.patchPath.toString()))
+                    .patchedOutput(Output.SingleOutput.pipe(patchedOutput))
+                    .level(LogLevel.WARN)
+                    .mode(PatchMode.OFFSET);
+
+            if (updateMode) {
+                builder.level(io.codechicken.diffpatch.util.LogLevel.ALL)
+                    .rejectsOutput(Output.SingleOutput.pipe(rejectsOutput));
+            }
+            if (fuzzy) {
+                builder.mode(PatchMode.FUZZY)
+                    .minFuzz(UPDATE_MODE_MIN_FUZZ);
+            }
+
+            exit = builder.build().operate().exit;
+        }
+
+        // Even a failed patch produces output with the hunks that did apply
+        var content = patchedOutput.toByteArray();
+        if (exit == 0 || content.length > 0) {
+            writePatchedFile(job, content);
+        }
+
+        if (located != null && hintCache != null) {
+            if (exit == 0) {
+                located.recordHint(hintCache);
+            } else {
+                located.discardHint(hintCache);
+            }
+        }
+
+        if (exit == 0) {
+            var contentCrc = new CRC32();
+            contentCrc.update(content);
+            return new PatchResult(true, log, inputs.withOutput(job.destination, contentCrc.getValue()));
+        }
+
+        if (updateMode && rejectsOutput.size() > 0) {
+            Path rejectsPath = workspace.resolve("rejects").resolve(entryName + ".patch");
+            Files.createDirectories(rejectsPath.getParent());
+            Files.write(rejectsPath, rejectsOutput.toByteArray());
+        }
+
+        return new PatchResult(false, log, null);
+    }
+
+    private void writePatchedFile(PatchJob job, byte[] content) throws IOException {
+        if (preserveUnchanged) {
+            if (!FileUtil.writeIfChanged(job.destination, content)) {
+                identicalFiles.incrementAndGet();
+            }
+        } else {
+            FileUtil.replace(job.destination, content);
+        }
+    }
+}
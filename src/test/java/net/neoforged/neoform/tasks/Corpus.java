@@ -0,0 +1,35 @@
+package net.neoforged.neoform.tasks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Real source files before and after they were edited, taken from the history of this repository.
+ */
+final class Corpus {
+    static final List<String> NAMES = List.of("CreatePatchWorkspace", "Decompile", "NeoFormProjectPlugin", "ToolAction");
+
+    private Corpus() {
+    }
+
+    static String before(String name) {
+        return read(name + ".before.txt");
+    }
+
+    static String after(String name) {
+        return read(name + ".after.txt");
+    }
+
+    private static String read(String fileName) {
+        try (var in = Corpus.class.getResourceAsStream("corpus/" + fileName)) {
+            if (in == null) {
+                throw new IllegalArgumentException("Missing corpus file " + fileName);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package net.neoforged.neoform.tasks;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class CreateLibrariesAbiJarTest {
+    @Test
+    void testStrippedClassIsValid() throws Exception {
+        byte[] classFile;
+        try (var in = Library.class.getResourceAsStream("/" + Library.class.getName().replace('.', '/') + ".class")) {
+            assertNotNull(in);
+            classFile = in.readAllBytes();
+        }
+        var stripped = CreateLibrariesAbiJar.stripToAbi(classFile);
+
+        var loader = new ClassLoader(null) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                if (name.equals(Library.class.getName())) {
+                    return defineClass(name, stripped, 0, stripped.length);
+                }
+                throw new ClassNotFoundException(name);
+            }
+        };
+        // Initializing the class verifies it
+        var strippedClass = Class.forName(Library.class.getName(), true, loader);
+        assertEquals(0, strippedClass.getDeclaredFields().length);
+
+        var method = strippedClass.getDeclaredMethod("compute", int.class);
+        try {
+            method.invoke(null, 1);
+            fail("The stripped method returned");
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof NullPointerException);
+        }
+    }
+
+    public abstract static class Library {
+        private int count;
+
+        public static int compute(int value) throws IOException {
+            if (value < 0) {
+                throw new IOException();
+            }
+            return value * 2;
+        }
+
+        protected abstract void run();
+
+        private void increment() {
+            count++;
+        }
+    }
+}
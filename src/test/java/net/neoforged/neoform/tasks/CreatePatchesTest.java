@@ -0,0 +1,142 @@
+package net.neoforged.neoform.tasks;
+
+import org.gradle.testfixtures.ProjectBuilder;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks which sources of a workspace created from {@code a/A.java}, {@code a/B.java} and {@code a/C.java}
+ * are diffed again by {@linkplain CreatePatches#getIncremental() incremental} patch creation.
+ */
+class CreatePatchesTest {
+    private static final Map<String, String> SOURCES = Map.of(
+            "a/A.java", "class A {}\n",
+            "a/B.java", "class B {}\n",
+            "a/C.java", "class C {}\n"
+    );
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testUntouchedWorkspaceHasNoDirtySources() throws IOException {
+        createWorkspace(false);
+        assertEquals(Set.of(), findDirtySources());
+    }
+
+    @Test
+    void testModifiedAddedAndDeletedSourcesAreDirty() throws IOException {
+        createWorkspace(false);
+        var sources = tempDir.resolve("workspace/src/main/java");
+        Files.writeString(sources.resolve("a/A.java"), "class A {\n    int field;\n}\n");
+        Files.writeString(sources.resolve("a/D.java"), "class D {}\n");
+        Files.delete(sources.resolve("a/C.java"));
+
+        assertEquals(Set.of("a/A.java", "a/C.java", "a/D.java"), findDirtySources());
+    }
+
+    @Test
+    void testSourceWithChangedPatchIsDirty() throws IOException {
+        createWorkspace(false);
+        var patch = tempDir.resolve("patches/a/B.java.patch");
+        Files.createDirectories(patch.getParent());
+        Files.writeString(patch, "--- a/a/B.java\n+++ b/a/B.java\n@@ -1,1 +1,1 @@\n-class B {}\n+class B { }\n");
+
+        assertEquals(Set.of("a/B.java"), findDirtySources());
+    }
+
+    @Test
+    void testSourceWithChangedEntryIsDirty() throws IOException {
+        createWorkspace(false);
+        var sources = new HashMap<>(SOURCES);
+        sources.put("a/B.java", "class B extends A {}\n");
+        writeSourcesZip(sources);
+
+        assertEquals(Set.of("a/B.java"), findDirtySources());
+    }
+
+    @Test
+    void testWorkspaceCreatedInUpdateModeDiffsAllSources() throws IOException {
+        createWorkspace(true);
+        assertNull(findDirtySources());
+    }
+
+    @Test
+    void testWorkspaceWithoutIndexDiffsAllSources() throws IOException {
+        createWorkspace(false);
+        Files.delete(tempDir.resolve("workspace").resolve(WorkspaceManifest.PATH));
+        assertNull(findDirtySources());
+    }
+
+    /**
+     * Creates the workspace and its index the way {@link CreatePatchWorkspace} does, without any patches.
+     */
+    private void createWorkspace(boolean updateMode) throws IOException {
+        Files.createDirectories(tempDir.resolve("patches"));
+        var sourcesZip = writeSourcesZip(SOURCES);
+        var workspace = tempDir.resolve("workspace");
+        try (var writer = new WorkspaceWriter(workspace, new HashMap<>(), updateMode, Map.of(), false,
+                CreatePatchWorkspace.Materialization.EXTRACT, null, 1, line -> {
+        })) {
+            writer.add(sourcesZip, false);
+            var result = writer.finish();
+            new WorkspaceManifest(updateMode, result.manifestFiles()).write(workspace);
+        }
+    }
+
+    private Path writeSourcesZip(Map<String, String> sources) throws IOException {
+        var sourcesZip = tempDir.resolve("sources.zip");
+        try (var out = new ZipOutputStream(Files.newOutputStream(sourcesZip))) {
+            for (var source : new TreeMap<>(sources).entrySet()) {
+                out.putNextEntry(new ZipEntry(source.getKey()));
+                out.write(source.getValue().getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        return sourcesZip;
+    }
+
+    private @Nullable Set<String> findDirtySources() throws IOException {
+        var workspace = tempDir.resolve("workspace");
+        var project = ProjectBuilder.builder().withProjectDir(tempDir.resolve("project").toFile()).build();
+        var task = project.getTasks().register("createPatches", CreatePatches.class, createPatches -> {
+            createPatches.getIncremental().set(true);
+            createPatches.getWorkspace().set(workspace.toFile());
+        }).get();
+
+        var modifiedSources = workspace.resolve("src/main/java");
+        Set<String> modifiedFiles;
+        try (var files = Files.walk(modifiedSources)) {
+            modifiedFiles = files.filter(Files::isRegularFile)
+                    .map(file -> modifiedSources.relativize(file).toString().replace('\\', '/'))
+                    .collect(Collectors.toCollection(TreeSet::new));
+        }
+        try (var zip = new ZipFile(tempDir.resolve("sources.zip").toFile())) {
+            var baseEntries = new TreeMap<String, ZipEntry>();
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                baseEntries.put(entry.getName(), entry);
+            }
+            return task.findDirtySources(baseEntries, modifiedFiles, modifiedSources, tempDir.resolve("patches"));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package net.neoforged.neoform.tasks;
+
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Checks that the output of {@link Decompile} is reused from the build cache by a copy of the project in another
+ * directory, using a fake decompiler that turns every class into a source file.
+ * <p>
+ * The task classes are put on the build script classpath directly rather than by applying the settings plugin,
+ * which would add the repositories and toolchain resolver the task does not need.
+ */
+class DecompileBuildCacheTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testOutputIsRelocatable() throws Exception {
+        var buildCache = tempDir.resolve("build-cache");
+        var inputJar = tempDir.resolve("input.jar");
+        try (var out = new ZipOutputStream(Files.newOutputStream(inputJar))) {
+            for (var className : new String[]{"a/A", "a/B", "b/C"}) {
+                out.putNextEntry(new ZipEntry(className + ".class"));
+                out.write(className.getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+
+        var firstProject = createProject(tempDir.resolve("first"), buildCache, inputJar);
+        var secondProject = createProject(tempDir.resolve("second"), buildCache, inputJar);
+
+        var first = runDecompile(firstProject);
+        assertEquals(TaskOutcome.SUCCESS, first.task(":testDecompile").getOutcome());
+        var second = runDecompile(secondProject);
+        assertEquals(TaskOutcome.FROM_CACHE, second.task(":testDecompile").getOutcome());
+
+        assertArrayEquals(
+                Files.readAllBytes(firstProject.resolve("build/sources.zip")),
+                Files.readAllBytes(secondProject.resolve("build/sources.zip"))
+        );
+        try (var zip = new ZipFile(secondProject.resolve("build/sources.zip").toFile())) {
+            assertNotNull(zip.getEntry("a/A.java"));
+        }
+    }
+
+    private static BuildResult runDecompile(Path projectDir) {
+        return GradleRunner.create()
+                .withProjectDir(projectDir.toFile())
+                .withArguments("testDecompile", "--build-cache", "--stacktrace")
+                .build();
+    }
+
+    private static Path createProject(Path projectDir, Path buildCache, Path inputJar) throws Exception {
+        Files.createDirectories(projectDir);
+        Files.copy(inputJar, projectDir.resolve("input.jar"));
+        var toolClasspath = Path.of(FakeDecompiler.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        Files.writeString(projectDir.resolve("settings.gradle"), """
+                buildCache {
+                    local {
+                        directory = file('%s')
+                    }
+                }
+                """.formatted(escape(buildCache)));
+        Files.writeString(projectDir.resolve("build.gradle"), """
+                buildscript {
+                    dependencies {
+                        classpath files(%s)
+                    }
+                }
+                tasks.register('testDecompile', net.neoforged.neoform.tasks.Decompile) {
+                    input.set(file('input.jar'))
+                    output.set(layout.buildDirectory.file('sources.zip'))
+                    mainClass.set('%s')
+                    toolClasspath.from('%s')
+                    args.set(['{preProcessJarOutput}', '{output}'])
+                    javaVersion.set(%d)
+                }
+                """.formatted(readPluginClasspath(), FakeDecompiler.class.getName(), escape(toolClasspath), Runtime.version().feature()));
+        return projectDir;
+    }
+
+    /**
+     * The classpath of the plugin, as a list of Groovy string literals.
+     */
+    static String readPluginClasspath() throws IOException {
+        var metadata = new Properties();
+        try (var in = DecompileBuildCacheTest.class.getResourceAsStream("/plugin-under-test-metadata.properties")) {
+            assertNotNull(in);
+            metadata.load(in);
+        }
+        var classpath = new ArrayList<String>();
+        for (var file : metadata.getProperty("implementation-classpath").split(File.pathSeparator)) {
+            classpath.add("'" + escape(Path.of(file)) + "'");
+        }
+        return String.join(", ", classpath);
+    }
+
+    static String escape(Path path) {
+        return path.toAbsolutePath().toString().replace("\\", "\\\\");
+    }
+
+    /**
+     * Writes a source file with the name of every class in the input jar.
+     */
+    public static final class FakeDecompiler {
+        public static void main(String[] args) throws IOException {
+            try (var in = new ZipInputStream(Files.newInputStream(Path.of(args[0])));
+                 var out = new ZipOutputStream(Files.newOutputStream(Path.of(args[1])))) {
+                for (var entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                    var name = entry.getName();
+                    if (name.endsWith(".class")) {
+                        var sourceEntry = new ZipEntry(name.substring(0, name.length() - ".class".length()) + ".java");
+                        sourceEntry.setTime(0);
+                        out.putNextEntry(sourceEntry);
+                        out.write(("// " + new String(in.readAllBytes(), StandardCharsets.UTF_8) + "\n").getBytes(StandardCharsets.UTF_8));
+                        out.closeEntry();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package net.neoforged.neoform.tasks;
+
+import io.codechicken.diffpatch.cli.PatchOperation;
+import io.codechicken.diffpatch.util.Input;
+import io.codechicken.diffpatch.util.LogLevel;
+import io.codechicken.diffpatch.util.Output;
+import io.codechicken.diffpatch.util.PatchMode;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Applies patches with DiffPatch, the way {@link WorkspaceWriter} does.
+ */
+final class DiffPatchApplier {
+    /**
+     * The minimum fuzz of update mode.
+     */
+    static final float MIN_FUZZ = 0.5f;
+
+    private DiffPatchApplier() {
+    }
+
+    /**
+     * @param exit    the exit code of DiffPatch, which is 0 if all hunks applied
+     * @param content the patched file, including the hunks that applied if some did not
+     */
+    record Applied(int exit, String content) {
+    }
+
+    static Applied apply(String base, String patch, PatchMode mode) throws IOException {
+        var patchedOutput = new ByteArrayOutputStream();
+        var builder = PatchOperation.builder()
+                .logTo(line -> {
+                })
+                .baseInput(Input.SingleInput.pipe(new ByteArrayInputStream(base.getBytes(StandardCharsets.UTF_8)), "Test.java"))
+                .patchesInput(Input.SingleInput.pipe(new ByteArrayInputStream(patch.getBytes(StandardCharsets.UTF_8)), "Test.java.patch"))
+                .patchedOutput(Output.SingleOutput.pipe(patchedOutput))
+                .level(LogLevel.WARN)
+                .mode(mode);
+        if (mode == PatchMode.FUZZY) {
+            builder.minFuzz(MIN_FUZZ);
+        }
+        var exit = builder.build().operate().exit;
+        return new Applied(exit, patchedOutput.toString(StandardCharsets.UTF_8));
+    }
+}
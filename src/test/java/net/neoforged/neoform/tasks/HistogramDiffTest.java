@@ -0,0 +1,224 @@
+package net.neoforged.neoform.tasks;
+
+import io.codechicken.diffpatch.cli.DiffOperation;
+import io.codechicken.diffpatch.util.Input;
+import io.codechicken.diffpatch.util.LogLevel;
+import io.codechicken.diffpatch.util.Output;
+import io.codechicken.diffpatch.util.PatchMode;
+import net.neoforged.neoform.dsl.DiffEngine;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class HistogramDiffTest {
+    @Test
+    void testAddedFile() throws IOException {
+        var patch = HistogramDiff.diff("", "a\nb\n", "A.java");
+        assertEquals("--- a/A.java\n+++ b/A.java\n@@ -1,0 +1,2 @@\n+a\n+b\n", patch);
+        assertRoundTrip("", "a\nb\n");
+    }
+
+    @Test
+    void testDeletedFile() throws IOException {
+        var patch = HistogramDiff.diff("a\nb\n", "", "A.java");
+        assertEquals("--- a/A.java\n+++ b/A.java\n@@ -1,2 +1,0 @@\n-a\n-b\n", patch);
+        assertRoundTrip("a\nb\n", "");
+    }
+
+    @Test
+    void testUnchangedFiles() {
+        assertNull(HistogramDiff.diff("", "", "A.java"));
+        assertNull(HistogramDiff.diff("a\nb\n", "a\nb\n", "A.java"));
+    }
+
+    @Test
+    void testLineBreakChangesAreIgnored() {
+        assertNull(HistogramDiff.diff("a\nb\n", "a\r\nb\r\n", "A.java"));
+        assertNull(HistogramDiff.diff("a\nb", "a\nb\n", "A.java"));
+        assertNull(HistogramDiff.diff("a\nb\n", "a\nb", "A.java"));
+    }
+
+    @Test
+    void testHunkHeaders() {
+        var base = "1\n2\n3\n4\n5\n6\n7\n8\n9\n10\n";
+        var patch = HistogramDiff.diff(base, base.replace("5\n", "five\n").replace("10\n", ""), "A.java");
+        assertEquals("""
+                --- a/A.java
+                +++ b/A.java
+                @@ -2,9 +2,8 @@
+                 2
+                 3
+                 4
+                -5
+                +five
+                 6
+                 7
+                 8
+                 9
+                -10
+                """, patch);
+    }
+
+    /**
+     * Closing braces and blank lines occur too often to anchor the histogram diff, and are matched with Myers instead
+     * of replacing everything between the changed first and last line.
+     */
+    @Test
+    void testLinesOccurringTooOftenAreMatched() throws IOException {
+        var body = "}\n\n".repeat(70);
+        var base = "a\n" + body + "b\n";
+        var modified = "c\n" + body.replaceFirst("}\n", "}\nadded\n") + "d\n";
+        var patch = HistogramDiff.diff(base, modified, "A.java");
+        assertNotNull(patch);
+        assertFalse(patch.contains("-}"), patch);
+        assertEquals(2, patch.split("@@ -").length - 1, patch);
+        assertRoundTrip(base, modified);
+    }
+
+    /**
+     * Files made of a few distinct lines, so that many lines occur more than once, with random edits.
+     */
+    @Test
+    void testRandomEditsRoundTrip() throws IOException {
+        for (var seed = 0; seed < 200; seed++) {
+            var random = new Random(seed);
+            var base = randomLines(random, random.nextInt(60));
+            var modified = new ArrayList<>(base);
+            var edits = random.nextInt(8);
+            for (var edit = 0; edit < edits; edit++) {
+                var position = modified.isEmpty() ? 0 : random.nextInt(modified.size());
+                switch (random.nextInt(3)) {
+                    case 0 -> modified.addAll(position, randomLines(random, 1 + random.nextInt(5)));
+                    case 1 -> {
+                        if (!modified.isEmpty()) {
+                            modified.subList(position, Math.min(modified.size(), position + 1 + random.nextInt(5))).clear();
+                        }
+                    }
+                    default -> {
+                        if (!modified.isEmpty()) {
+                            modified.set(position, "changed " + random.nextInt(4));
+                        }
+                    }
+                }
+            }
+            assertRoundTrip(join(base), join(modified));
+        }
+    }
+
+    @Test
+    void testCorpusRoundTrip() throws IOException {
+        for (var name : Corpus.NAMES) {
+            assertRoundTrip(Corpus.before(name), Corpus.after(name));
+            assertRoundTrip(Corpus.after(name), Corpus.before(name));
+        }
+    }
+
+    /**
+     * Compares the time to diff a file of the size of the largest decompiled Minecraft classes with both engines.
+     * Run with {@code -Pneoform.benchmark=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "neoform.benchmark", matches = "true")
+    void benchmarkHistogramAgainstDiffPatch() throws IOException {
+        // Copies of the corpus, each with a unique line so that the copies can be told apart
+        var base = new StringBuilder();
+        var modified = new StringBuilder();
+        for (var copy = 0; base.length() < 500_000; copy++) {
+            for (var name : Corpus.NAMES) {
+                base.append("// copy ").append(copy).append('\n').append(Corpus.before(name));
+                modified.append("// copy ").append(copy).append('\n').append(copy % 2 == 0 ? Corpus.after(name) : Corpus.before(name));
+            }
+        }
+        System.out.printf("Diffing %d lines%n", base.chars().filter(c -> c == '\n').count());
+
+        for (var engine : DiffEngine.values()) {
+            var times = new ArrayList<Long>();
+            var patchSize = 0;
+            for (var i = 0; i < 6; i++) {
+                var start = System.nanoTime();
+                var patch = engine == DiffEngine.HISTOGRAM
+                        ? HistogramDiff.diff(base.toString(), modified.toString(), "Test.java")
+                        : diffWithDiffPatch(base.toString(), modified.toString());
+                // The first run warms up the JIT
+                if (i > 0) {
+                    times.add((System.nanoTime() - start) / 1_000_000);
+                }
+                assertNotNull(patch);
+                patchSize = patch.length();
+            }
+            Collections.sort(times);
+            System.out.printf("%s: median of %d diffs: %d ms, patch of %d characters%n",
+                    engine, times.size(), times.get(times.size() / 2), patchSize);
+        }
+    }
+
+    /**
+     * Diffs with DiffPatch, the way {@link CreatePatches} does.
+     */
+    private static String diffWithDiffPatch(String base, String modified) throws IOException {
+        var patchOutput = new ByteArrayOutputStream();
+        DiffOperation.builder()
+                .logTo(line -> {
+                })
+                .baseInput(Input.SingleInput.pipe(new ByteArrayInputStream(base.getBytes(StandardCharsets.UTF_8)), "Test.java"))
+                .changedInput(Input.SingleInput.pipe(new ByteArrayInputStream(modified.getBytes(StandardCharsets.UTF_8)), "Test.java"))
+                .patchesOutput(Output.SingleOutput.pipe(patchOutput))
+                .autoHeader(true)
+                .level(LogLevel.WARN)
+                .summary(false)
+                .aPrefix("a/")
+                .bPrefix("b/")
+                .lineEnding("\n")
+                .build()
+                .operate();
+        return patchOutput.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks that DiffPatch turns the original into the modified file with the patch.
+     */
+    private static void assertRoundTrip(String base, String modified) throws IOException {
+        var patch = HistogramDiff.diff(base, modified, "Test.java");
+        if (base.equals(modified)) {
+            assertNull(patch);
+            return;
+        }
+        assertNotNull(patch);
+        var applied = DiffPatchApplier.apply(base, patch, PatchMode.EXACT);
+        assertEquals(0, applied.exit(), patch);
+        assertEquals(modified, applied.content(), patch);
+    }
+
+    private static List<String> randomLines(Random random, int count) {
+        var lines = new ArrayList<String>(count);
+        for (var i = 0; i < count; i++) {
+            lines.add(switch (random.nextInt(6)) {
+                case 0 -> "}";
+                case 1 -> "";
+                default -> "line " + random.nextInt(10);
+            });
+        }
+        return lines;
+    }
+
+    private static String join(List<String> lines) {
+        var text = new StringBuilder();
+        for (var line : lines) {
+            text.append(line).append('\n');
+        }
+        return text.toString();
+    }
+}
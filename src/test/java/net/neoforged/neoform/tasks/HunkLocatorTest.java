@@ -0,0 +1,162 @@
+package net.neoforged.neoform.tasks;
+
+import io.codechicken.diffpatch.util.PatchMode;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HunkLocatorTest {
+    @TempDir
+    Path workspace;
+
+    @Test
+    void testPatchThatAppliesInPlaceIsKept() {
+        var base = numberedLines(50);
+        var patch = diff(base, base.replace("line 20\n", "changed 20\n"));
+
+        var result = locate(base, patch);
+        assertTrue(result.allExact());
+        assertArrayEquals(patch.getBytes(StandardCharsets.UTF_8), result.patch());
+    }
+
+    @Test
+    void testHunkIsMovedToExactMatch() {
+        var base = numberedLines(50);
+        var patch = diff(base, base.replace("line 20\n", "changed 20\n"));
+        assertTrue(patch.contains("@@ -18,7 +18,7 @@"), patch);
+
+        var result = locate("added 1\nadded 2\nadded 3\nadded 4\nadded 5\n" + base, patch);
+        assertTrue(result.allExact());
+        assertTrue(new String(result.patch(), StandardCharsets.UTF_8).contains("@@ -23,7 +23,7 @@"));
+    }
+
+    @Test
+    void testHunkWithoutMatchIsLeftInPlace() {
+        var base = numberedLines(50);
+        var patch = diff(base, base.replace("line 20\n", "changed 20\n"));
+
+        var file = base;
+        for (var i = 15; i < 25; i++) {
+            file = file.replace("line " + i + "\n", "other " + i + "\n");
+        }
+        var result = locate(file, patch);
+        assertFalse(result.allExact());
+        assertArrayEquals(patch.getBytes(StandardCharsets.UTF_8), result.patch());
+    }
+
+    @Test
+    void testHintIsOnlyKeptOnceRecorded() throws IOException {
+        var base = numberedLines(50);
+        var patch = diff(base, base.replace("line 20\n", "changed 20\n"));
+        var file = "added 1\nadded 2\n" + base;
+
+        var hints = HunkHintCache.open(workspace);
+        var result = locate(file, patch, hints);
+        assertNotNull(result.hint());
+        hints.save();
+        assertFalse(Files.exists(workspace.resolve(HunkHintCache.PATH)));
+
+        result.recordHint(hints);
+        hints.save();
+        var reopened = HunkHintCache.open(workspace);
+        assertEquals(List.of(19), reopened.get(result.hintKey()).starts());
+        assertArrayEquals(result.patch(), locate(file, patch, reopened).patch());
+
+        // A hint that did not apply is dropped, even though the patch is still in use
+        reopened.retain("patch");
+        locate(file, patch, reopened).discardHint(reopened);
+        reopened.save();
+        assertFalse(Files.exists(workspace.resolve(HunkHintCache.PATH)));
+    }
+
+    @Test
+    void testHintBelowMinFuzzIsIgnored() throws IOException {
+        var base = numberedLines(50);
+        var patch = diff(base, base.replace("line 20\n", "changed 20\n"));
+        var file = "added 1\nadded 2\n" + base;
+        var key = HunkHintCache.key(file.getBytes(StandardCharsets.UTF_8), "patch", DiffPatchApplier.MIN_FUZZ);
+        Files.createDirectories(workspace.resolve(HunkHintCache.PATH).getParent());
+        Files.writeString(workspace.resolve(HunkHintCache.PATH), "{\"" + key + "\":{\"starts\":[35],\"allExact\":false}}");
+
+        var result = locate(file, patch, HunkHintCache.open(workspace));
+        assertTrue(result.allExact());
+        assertEquals(List.of(19), result.hint().starts());
+    }
+
+    /**
+     * Applies patches between real sources to copies of the original with lines inserted at random, and checks that
+     * DiffPatch produces the same file from the located patch as from the patch it would otherwise search for itself.
+     */
+    @Test
+    void testLocatedPatchesApplyLikeDiffPatchPlacesThem() throws IOException {
+        for (var name : Corpus.NAMES) {
+            var before = Corpus.before(name);
+            var patch = diff(before, Corpus.after(name));
+            for (var seed = 0; seed < 20; seed++) {
+                var shifted = insertLines(before, new Random(seed * 31L + name.hashCode()), seed);
+                var expected = DiffPatchApplier.apply(shifted, patch, PatchMode.FUZZY);
+
+                var located = locate(shifted, patch);
+                var actual = DiffPatchApplier.apply(shifted, new String(located.patch(), StandardCharsets.UTF_8),
+                        located.allExact() ? PatchMode.OFFSET : PatchMode.FUZZY);
+                assertEquals(expected, actual, name + " with seed " + seed);
+                if (located.allExact()) {
+                    assertEquals(0, actual.exit(), name + " with seed " + seed);
+                }
+            }
+        }
+    }
+
+    private static HunkLocator.Result locate(String file, String patch) {
+        return locate(file, patch, null);
+    }
+
+    private static HunkLocator.Result locate(String file, String patch, @Nullable HunkHintCache hints) {
+        return HunkLocator.locate(file.getBytes(StandardCharsets.UTF_8), patch.getBytes(StandardCharsets.UTF_8),
+                DiffPatchApplier.MIN_FUZZ, hints, "patch");
+    }
+
+    private static String diff(String base, String modified) {
+        var patch = HistogramDiff.diff(base, modified, "Test.java");
+        assertNotNull(patch);
+        return patch;
+    }
+
+    private static String numberedLines(int count) {
+        var text = new StringBuilder();
+        for (var i = 0; i < count; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Inserts a few blocks of lines that don't occur anywhere else, which may also end up inside of hunks.
+     */
+    private static String insertLines(String text, Random random, int seed) {
+        var lines = new ArrayList<>(List.of(text.split("\n", -1)));
+        var blocks = 1 + random.nextInt(5);
+        for (var block = 0; block < blocks; block++) {
+            var position = random.nextInt(lines.size());
+            var length = 1 + random.nextInt(10);
+            for (var i = 0; i < length; i++) {
+                lines.add(position, "// inserted " + seed + "-" + block + "-" + i);
+            }
+        }
+        return String.join("\n", lines);
+    }
+}
@@ -0,0 +1,295 @@
+package net.neoforged.neoform.tasks;
+
+import org.gradle.testkit.runner.GradleRunner;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Plans and runs incremental decompilations of jars with the classes
+ * <ul>
+ *     <li>{@code a/A}, referencing {@code a/B}, and its nested class {@code a/A$Inner},</li>
+ *     <li>{@code a/B},</li>
+ *     <li>{@code b/C}, extending {@code a/B},</li>
+ *     <li>{@code c/D} to {@code c/H}, which are unrelated to the others.</li>
+ * </ul>
+ */
+class IncrementalDecompilationTest {
+    private static final Set<String> FILLERS = Set.of("c/D", "c/E", "c/F", "c/G", "c/H");
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testUnchangedJarReusesAllSources() throws IOException {
+        var plan = plan(createClasses(), createClasses());
+        assertEquals(Set.of(), plan.changedClasses());
+        assertEquals(Set.of("a/A.java", "a/B.java", "b/C.java", "c/D.java", "c/E.java", "c/F.java", "c/G.java", "c/H.java"), plan.reusedSources());
+    }
+
+    @Test
+    void testBodyChangeOnlyDecompilesTheChangedClass() throws IOException {
+        var current = createClasses();
+        current.put("a/B", classFile("a/B", "java/lang/Object", null, 1, false));
+
+        var plan = plan(createClasses(), current);
+        assertEquals(Set.of("a/B.class"), plan.changedClasses());
+        assertEquals(Set.of("a/A.class", "a/A$Inner.class", "b/C.class", "c/D.class", "c/E.class", "c/F.class", "c/G.class", "c/H.class"), plan.contextClasses());
+    }
+
+    @Test
+    void testAbiChangeDecompilesReferencingClassesAndSubclasses() throws IOException {
+        var current = createClasses();
+        current.put("a/B", classFile("a/B", "java/lang/Object", null, 0, true));
+
+        var plan = plan(createClasses(), current);
+        assertEquals(Set.of("a/A.class", "a/A$Inner.class", "a/B.class", "b/C.class"), plan.changedClasses());
+        assertEquals(Set.of("c/D.java", "c/E.java", "c/F.java", "c/G.java", "c/H.java"), plan.reusedSources());
+    }
+
+    @Test
+    void testNestedClassChangeDecompilesItsOuterClass() throws IOException {
+        var current = createClasses();
+        current.put("a/A$Inner", classFile("a/A$Inner", "java/lang/Object", null, 1, false));
+
+        var plan = plan(createClasses(), current);
+        assertEquals(Set.of("a/A.class", "a/A$Inner.class"), plan.changedClasses());
+    }
+
+    @Test
+    void testAddedClassDecompilesItsPackage() throws IOException {
+        var current = createClasses();
+        current.put("b/J", classFile("b/J", "java/lang/Object", null, 0, false));
+
+        var plan = plan(createClasses(), current);
+        assertEquals(Set.of("b/C.class", "b/J.class"), plan.changedClasses());
+    }
+
+    @Test
+    void testClassWithoutPreviousSourceIsDecompiled() throws IOException {
+        var previousJar = writeJar("previous.jar", createClasses());
+        var previousSources = writeSources(Set.of("a/A", "a/B", "b/C", "c/E", "c/F", "c/G", "c/H"));
+        var plan = IncrementalDecompilation.plan(previousJar, previousSources, writeJar("current.jar", createClasses()));
+        assertNotNull(plan);
+        assertEquals(Set.of("c/D.class"), plan.changedClasses());
+    }
+
+    @Test
+    void testTooManyChangesDecompileFully() throws IOException {
+        var current = createClasses();
+        for (var filler : FILLERS) {
+            current.put(filler, classFile(filler, "java/lang/Object", null, 1, false));
+        }
+
+        var previousJar = writeJar("previous.jar", createClasses());
+        var previousSources = writeSources(Set.of("a/A", "a/B", "b/C", "c/D", "c/E", "c/F", "c/G", "c/H"));
+        assertNull(IncrementalDecompilation.plan(previousJar, previousSources, writeJar("current.jar", current)));
+    }
+
+    /**
+     * Decompiles a series of changed jars with {@link Decompile}, both incrementally from the output for the previous
+     * jar and fully, and checks that the merged sources are the same.
+     */
+    @Test
+    void testIncrementalOutputMatchesFullDecompilation() throws Exception {
+        var projectDir = tempDir.resolve("project");
+        Files.createDirectories(projectDir);
+        var toolClasspath = Path.of(FakeDecompiler.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        Files.writeString(projectDir.resolve("settings.gradle"), "");
+        Files.writeString(projectDir.resolve("build.gradle"), """
+                buildscript {
+                    dependencies {
+                        classpath files(%s)
+                    }
+                }
+                def inputJar = file(providers.gradleProperty('inputJar'))
+                tasks.register('incrementalDecompile', net.neoforged.neoform.tasks.Decompile) {
+                    incrementalBaseline.set(layout.buildDirectory.dir('baseline'))
+                    output.set(layout.buildDirectory.file('incremental.zip'))
+                }
+                tasks.register('fullDecompile', net.neoforged.neoform.tasks.Decompile) {
+                    output.set(layout.buildDirectory.file('full.zip'))
+                }
+                tasks.withType(net.neoforged.neoform.tasks.Decompile).configureEach {
+                    input.set(inputJar)
+                    mainClass.set('%s')
+                    toolClasspath.from('%s')
+                    args.set(['{preProcessJarOutput}', '{output}'])
+                    javaVersion.set(%d)
+                }
+                """.formatted(DecompileBuildCacheTest.readPluginClasspath(), FakeDecompiler.class.getName(),
+                DecompileBuildCacheTest.escape(toolClasspath), Runtime.version().feature()));
+
+        var jars = new LinkedHashMap<String, Map<String, byte[]>>();
+        jars.put("unchanged", createClasses());
+        var bodyChange = createClasses();
+        bodyChange.put("a/B", classFile("a/B", "java/lang/Object", null, 1, false));
+        jars.put("body change", bodyChange);
+        var abiChange = createClasses();
+        abiChange.put("a/B", classFile("a/B", "java/lang/Object", null, 0, true));
+        jars.put("ABI change", abiChange);
+        var nestedChange = createClasses();
+        nestedChange.put("a/A$Inner", classFile("a/A$Inner", "java/lang/Object", null, 1, false));
+        jars.put("nested class change", nestedChange);
+        var addedClass = createClasses();
+        addedClass.put("b/J", classFile("b/J", "java/lang/Object", null, 0, false));
+        jars.put("added class", addedClass);
+
+        var first = true;
+        for (var jar : jars.entrySet()) {
+            var inputJar = writeJar(jar.getKey().replace(' ', '-') + ".jar", jar.getValue());
+            var result = GradleRunner.create()
+                    .withProjectDir(projectDir.toFile())
+                    .withArguments("incrementalDecompile", "fullDecompile", "-PinputJar=" + inputJar.toAbsolutePath(), "--stacktrace")
+                    .build();
+            // The first decompilation creates the baseline, all later ones must be incremental
+            assertTrue(first || result.getOutput().contains("source files of the last decompilation"), jar.getKey());
+            assertEquals(readSources(projectDir.resolve("build/full.zip")), readSources(projectDir.resolve("build/incremental.zip")), jar.getKey());
+            first = false;
+        }
+    }
+
+    private static Map<String, String> readSources(Path sourcesZip) throws IOException {
+        var sources = new LinkedHashMap<String, String>();
+        try (var zip = new ZipFile(sourcesZip.toFile())) {
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                try (var in = zip.getInputStream(entry)) {
+                    sources.put(entry.getName(), new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return sources;
+    }
+
+    private IncrementalDecompilation.Plan plan(Map<String, byte[]> previous, Map<String, byte[]> current) throws IOException {
+        var previousJar = writeJar("previous.jar", previous);
+        var previousSources = writeSources(Set.of("a/A", "a/B", "b/C", "c/D", "c/E", "c/F", "c/G", "c/H"));
+        var plan = IncrementalDecompilation.plan(previousJar, previousSources, writeJar("current.jar", current));
+        assertNotNull(plan);
+        return plan;
+    }
+
+    private static Map<String, byte[]> createClasses() {
+        var classes = new TreeMap<String, byte[]>();
+        classes.put("a/A", classFile("a/A", "java/lang/Object", "a/B", 0, false));
+        classes.put("a/A$Inner", classFile("a/A$Inner", "java/lang/Object", null, 0, false));
+        classes.put("a/B", classFile("a/B", "java/lang/Object", null, 0, false));
+        classes.put("b/C", classFile("b/C", "a/B", null, 0, false));
+        for (var filler : FILLERS) {
+            classes.put(filler, classFile(filler, "java/lang/Object", null, 0, false));
+        }
+        return classes;
+    }
+
+    /**
+     * @param reference   a class referenced from a method body, which is not part of the ABI
+     * @param value       the value returned by a method, which is not part of the ABI
+     * @param extraField  whether to add a field, which changes the ABI
+     */
+    private static byte[] classFile(String name, String superName, @Nullable String reference, int value, boolean extraField) {
+        var writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V17, Opcodes.ACC_PUBLIC, name, null, superName, null);
+
+        var valueMethod = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "value", "()I", null, null);
+        valueMethod.visitCode();
+        valueMethod.visitLdcInsn(value);
+        valueMethod.visitInsn(Opcodes.IRETURN);
+        valueMethod.visitMaxs(0, 0);
+        valueMethod.visitEnd();
+
+        if (reference != null) {
+            var referenceMethod = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "reference", "()Ljava/lang/Object;", null, null);
+            referenceMethod.visitCode();
+            referenceMethod.visitLdcInsn(Type.getObjectType(reference));
+            referenceMethod.visitInsn(Opcodes.ARETURN);
+            referenceMethod.visitMaxs(0, 0);
+            referenceMethod.visitEnd();
+        }
+        if (extraField) {
+            writer.visitField(Opcodes.ACC_PUBLIC, "extra", "I", null, null).visitEnd();
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private Path writeJar(String fileName, Map<String, byte[]> classes) throws IOException {
+        var jar = tempDir.resolve(fileName);
+        try (var out = new ZipOutputStream(Files.newOutputStream(jar))) {
+            for (var entry : classes.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey() + ".class"));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    private Path writeSources(Set<String> classNames) throws IOException {
+        var zip = tempDir.resolve("sources.zip");
+        try (var out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            for (var className : new TreeSet<>(classNames)) {
+                out.putNextEntry(new ZipEntry(className + ".java"));
+                out.write(("class " + className.substring(className.indexOf('/') + 1) + " {}\n").getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        return zip;
+    }
+
+    /**
+     * Writes a source file for every outer class of the input jar, with the checksum of the class and its nested
+     * classes, so that the source of a class only depends on the class itself, and not on the order of the jar.
+     */
+    public static final class FakeDecompiler {
+        public static void main(String[] args) throws IOException {
+            var sources = new TreeMap<String, TreeMap<String, Long>>();
+            try (var in = new ZipInputStream(Files.newInputStream(Path.of(args[0])))) {
+                for (var entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                    var name = entry.getName();
+                    if (name.endsWith(".class")) {
+                        var className = name.substring(0, name.length() - ".class".length());
+                        var nestedStart = className.indexOf('$');
+                        var sourceName = (nestedStart != -1 ? className.substring(0, nestedStart) : className) + ".java";
+                        var crc = new CRC32();
+                        crc.update(in.readAllBytes());
+                        sources.computeIfAbsent(sourceName, ignored -> new TreeMap<>()).put(className, crc.getValue());
+                    }
+                }
+            }
+            try (var out = new ZipOutputStream(Files.newOutputStream(Path.of(args[1])))) {
+                for (var source : sources.entrySet()) {
+                    out.putNextEntry(new ZipEntry(source.getKey()));
+                    for (var classFile : source.getValue().entrySet()) {
+                        out.write(("// " + classFile.getKey() + " " + classFile.getValue() + "\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                    out.closeEntry();
+                }
+            }
+        }
+    }
+}
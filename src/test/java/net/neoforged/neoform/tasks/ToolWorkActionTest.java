@@ -0,0 +1,128 @@
+package net.neoforged.neoform.tasks;
+
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs a fake tool in a reusable worker process and in new processes, using tasks that each run it once.
+ */
+class ToolWorkActionTest {
+    private static final int TASKS = 10;
+
+    @TempDir
+    Path projectDir;
+
+    @Test
+    void testToolDoesNotSeePluginClasses() throws Exception {
+        createProject();
+        runTools(true);
+        assertEquals("isolated", Files.readString(projectDir.resolve("build/tool1.txt")));
+    }
+
+    /**
+     * Compares the time to run the tool in a worker process against starting a new JVM for every run.
+     * Run with {@code -Pneoform.benchmark=true}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "neoform.benchmark", matches = "true")
+    void benchmarkWorkerAgainstNewProcesses() throws Exception {
+        createProject();
+        for (var reuseProcess : new boolean[]{true, false}) {
+            // The first build starts the Gradle daemon, and the worker process
+            runTools(reuseProcess);
+            var times = new ArrayList<Long>();
+            for (var i = 0; i < 5; i++) {
+                var start = System.nanoTime();
+                runTools(reuseProcess);
+                times.add((System.nanoTime() - start) / 1_000_000);
+            }
+            Collections.sort(times);
+            System.out.printf("%s: median of %d builds running the tool %d times: %d ms%n",
+                    reuseProcess ? "Worker process" : "New processes", times.size(), TASKS, times.get(times.size() / 2));
+        }
+    }
+
+    private void runTools(boolean reuseProcess) {
+        var args = new ArrayList<String>();
+        for (var i = 1; i <= TASKS; i++) {
+            args.add("runTool" + i);
+        }
+        args.add("-PreuseProcess=" + reuseProcess);
+        args.add("--stacktrace");
+        GradleRunner.create()
+                .withProjectDir(projectDir.toFile())
+                .withPluginClasspath()
+                .withArguments(args)
+                .build();
+    }
+
+    private void createProject() throws Exception {
+        var toolClasspath = Path.of(FakeTool.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        Files.writeString(projectDir.resolve("settings.gradle"), """
+                plugins {
+                    id 'net.neoforged.neoform'
+                }
+                neoForm {
+                    minecraftVersion.set('1.21.1')
+                    useClassDataSharing.set(false)
+                }
+                """);
+        Files.writeString(projectDir.resolve("build.gradle"), """
+                abstract class RunTool extends net.neoforged.neoform.tasks.ToolAction {
+                    @OutputFile
+                    abstract RegularFileProperty getOutput()
+
+                    @TaskAction
+                    void run() {
+                        exec([output: output.get().asFile.absolutePath])
+                    }
+                }
+
+                for (i in 1..%d) {
+                    def index = i
+                    tasks.register("runTool$index", RunTool) {
+                        mainClass.set('%s')
+                        toolClasspath.from('%s')
+                        args.set(['{output}'])
+                        javaVersion.set(%d)
+                        reuseProcess.set(providers.gradleProperty('reuseProcess').map { it.toBoolean() })
+                        output.set(layout.buildDirectory.file("tool${index}.txt"))
+                        outputs.upToDateWhen { false }
+                    }
+                }
+                """.formatted(TASKS, FakeTool.class.getName(), toolClasspath.toAbsolutePath().toString().replace("\\", "\\\\"),
+                Runtime.version().feature()));
+    }
+
+    /**
+     * Sorts some numbers, and writes whether the classes of the plugin or its dependencies are visible to it.
+     */
+    public static final class FakeTool {
+        public static void main(String[] args) throws IOException {
+            var numbers = new Random(0).ints(1_000_000).toArray();
+            Arrays.sort(numbers);
+
+            var visibility = "isolated";
+            for (var className : new String[]{"net.neoforged.neoform.tasks.ToolAction", "com.google.gson.Gson"}) {
+                try {
+                    Class.forName(className, false, FakeTool.class.getClassLoader());
+                    visibility = "sees " + className;
+                } catch (ClassNotFoundException ignored) {
+                }
+            }
+            Files.writeString(Path.of(args[0]), visibility);
+        }
+    }
+}